@@ -186,5 +186,15 @@ public class MainActivity extends Activity {
 		public void onTermination() {
 			wifi.getConnection().disconnect();
 		}
+
+		@Override
+		public void onPeerLost() {
+			Logg.d(TAG, "lost contact with peer");
+		}
+
+		@Override
+		public void onPeerFound() {
+			Logg.d(TAG, "back in contact with peer");
+		}
 	}
 }
@@ -1,6 +1,6 @@
 package com.wordsaretoys.klammer.stream;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
@@ -13,6 +13,17 @@ import com.wordsaretoys.klammer.util.Needle;
 
 /**
  * handles microphone and speaker
+ * 
+ * several encoded frames may be bundled into one packet
+ * to save on header overhead and packet rate. a bundle is
+ * laid out as
+ * 
+ *  0      frame count
+ *  1-n    length of each frame in bytes
+ *  n+1    frame data, back to back
+ * 
+ * and carries the timestamp of its first frame; frames
+ * after it follow at one frame time apart.
  */
 public class Audio {
 
@@ -20,6 +31,15 @@ public class Audio {
 
 	static int SampleRate = 8000;
 	
+	// duration of one frame in ms
+	static int FrameTime = Codecs.AudioFrameSize * 1000 / SampleRate;
+	
+	// most frames that may be bundled into one packet
+	public static final int MaxBundle = 4;
+	
+	// default packet duration in ms
+	static int PacketTime = 40;
+	
 	// streamer parent object
 	Streamer streamer;
 
@@ -31,6 +51,18 @@ public class Audio {
 	
 	// audio buffer size in samples
 	int bufferSize;
+	
+	// incoming frames waiting for playback
+	JitterBuffer jitterBuffer;
+	
+	// decoded incoming frame
+	short[] decoded;
+	
+	// frames bundled into each outgoing packet
+	volatile int bundleSize;
+	
+	// frames bundled into the last incoming packet
+	int lastBundle;
 
 	/**
 	 * ctor
@@ -56,6 +88,10 @@ public class Audio {
 		// initialize codecs
 		streamer.getCodecs().acquireAudioCodecs(SampleRate, bufferSize);
 		
+		jitterBuffer = new JitterBuffer(Codecs.AudioFrameSize, SampleRate);
+		decoded = new short[Codecs.AudioFrameSize];
+		setPacketTime(PacketTime);
+		
 		// start mic recording thread
 		recorder = new Recorder();
 		recorder.start();
@@ -68,10 +104,80 @@ public class Audio {
 	}
 
 	/**
-	 * copies a packet of audio data to the speaker buffer
+	 * set how much audio goes into each outgoing packet
+	 * may be called from any thread; applies from the next packet
+	 * @param ms packet duration, rounded down to 20, 40, 60 or 80 ms
+	 */
+	public void setPacketTime(int ms) {
+		bundleSize = Math.min(Math.max(ms / FrameTime, 1), MaxBundle);
+	}
+	
+	/**
+	 * @return duration of audio in each outgoing packet in ms
+	 */
+	public int getPacketTime() {
+		return bundleSize * FrameTime;
+	}
+	
+	/**
+	 * unbundles a packet of audio data and decodes 
+	 * each frame into the jitter buffer
+	 * @param data packet payload, from position to limit
+	 * @param timestamp capture time from the packet header
+	 * @param arrival local time the packet arrived, in ms
+	 */
+	public void handlePacket(ByteBuffer data, int timestamp, int arrival) {
+		int start = data.position();
+		int end = data.limit();
+		if (start >= end) {
+			return;
+		}
+		int count = data.get(start) & 0xff;
+		int p = start + 1 + count;
+		if (count == 0 || count > MaxBundle || p > end) {
+			return;
+		}
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			total += data.get(start + 1 + i) & 0xff;
+		}
+		if (p + total > end) {
+			return;
+		}
+		
+		// frames arrive in bursts of this many, so the
+		// playout delay has to cover at least one burst
+		if (count != lastBundle) {
+			lastBundle = count;
+			jitterBuffer.setBurst(count);
+		}
+		
+		boolean first = true;
+		for (int i = 0; i < count; i++) {
+			int length = data.get(start + 1 + i) & 0xff;
+			data.limit(p + length).position(p);
+			p += length;
+			int n = streamer.getCodecs().decodeAudioData(data, decoded, 0);
+			if (n == Codecs.AudioFrameSize) {
+				int stamp = timestamp + i * FrameTime;
+				// only the first frame says anything about
+				// network jitter; the rest came along with it
+				if (first) {
+					jitterBuffer.put(stamp, decoded, arrival + i * FrameTime);
+					first = false;
+				} else {
+					jitterBuffer.put(stamp, decoded);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * get the playback jitter buffer
+	 * @return jitter buffer object
 	 */
-	public void handlePacket(byte[] data, int length) {
-		player.collectPacketData(data, length);
+	public JitterBuffer getJitterBuffer() {
+		return jitterBuffer;
 	}
 	
 	/**
@@ -85,13 +191,28 @@ public class Audio {
 		// audio buffer
 		short[] buffer;
 		
-		// packet buffer
+		// encoded frame, packet, and bundled frame buffers,
+		// leased from the buffer pool while recording
+		BufferPool.Buffer[] leases = new BufferPool.Buffer[3];
+		byte[] frame;
 		byte[] packet;
 		
+		// frames waiting to be sent: count, lengths, 
+		// data, bytes of data, and timestamp of the first
+		int count;
+		int[] lengths;
+		byte[] frames;
+		int fill;
+		int bundleStamp;
+		
+		// capture time of the first sample, and samples read since
+		int startTime;
+		long samples;
+		
 		public Recorder() {
 			super("recorder", 1);
 			buffer = new short[bufferSize];
-			packet = new byte[Network.BufferSize];
+			lengths = new int[MaxBundle];
 		}
 		
 		@Override
@@ -109,54 +230,97 @@ public class Audio {
 				return;
 			}
 			
+			BufferPool pool = BufferPool.getShared();
+			for (int i = 0; i < leases.length; i++) {
+				leases[i] = pool.lease(Network.PacketSize);
+			}
+			frame = leases[0].array();
+			packet = leases[1].array();
+			frames = leases[2].array();
+			
 			mic.startRecording();
 
 			while (inPump()) {
 				mic.read(buffer, 0, buffer.length);
+				// derive timestamps from the sample count so they
+				// advance exactly one frame time per frame
+				if (samples == 0) {
+					startTime = streamer.getNetwork().getClock() - 
+							(int)(buffer.length * 1000L / SampleRate);
+				}
+				// no one to hear it, so don't bother encoding
+				if (!streamer.getNetwork().isStreaming()) {
+					count = fill = 0;
+					samples += buffer.length;
+					continue;
+				}
 				for (int i = 0; i < buffer.length; i += Codecs.AudioFrameSize) {
-					int outlen = streamer.getCodecs().encodeAudioFrame(buffer, i, packet);
-					if (outlen > 0) {
-						if (streamer.getNetwork().isReady()) {
-							streamer.getNetwork().sendAudioFrame(packet, outlen);
+					int stamp = startTime + (int)((samples + i) * 1000 / SampleRate);
+					int outlen = streamer.getCodecs().encodeAudioFrame(buffer, i, frame);
+					if (outlen > 0 && outlen <= 0xff) {
+						if (count == 0) {
+							bundleStamp = stamp;
 						}
+						System.arraycopy(frame, 0, frames, fill, outlen);
+						lengths[count++] = outlen;
+						fill += outlen;
+					} else {
+						// a gap would throw the timestamps of any
+						// later frames off, so send what we have
+						flush();
+					}
+					if (count >= bundleSize) {
+						flush();
 					}
 				}
+				samples += buffer.length;
 			}
 			
 			mic.stop();
 			mic.release();
+			
+			for (int i = 0; i < leases.length; i++) {
+				leases[i].release();
+				leases[i] = null;
+			}
+		}
+		
+		/**
+		 * send any bundled frames as one packet
+		 */
+		void flush() {
+			if (count == 0) {
+				return;
+			}
+			int p = 0;
+			packet[p++] = (byte) count;
+			for (int i = 0; i < count; i++) {
+				packet[p++] = (byte) lengths[i];
+			}
+			System.arraycopy(frames, 0, packet, p, fill);
+			p += fill;
+			if (streamer.getNetwork().isStreaming()) {
+				streamer.getNetwork().sendAudioFrame(packet, p, bundleStamp);
+			}
+			count = 0;
+			fill = 0;
 		}
 	}
 	
 	/**
-	 * streams audio buffer to speaker
+	 * streams frames from the jitter buffer to speaker
 	 */
 	class Player extends Needle {
 
 		// audio out
 		AudioTrack speaker;
 		
-		// audio & collection buffers
-		short[] buffer, collect;
-		
-		// collection offset
-		int offset;
+		// playback frame
+		short[] frame;
 
 		public Player() {
 			super("player", 1);
-			buffer = new short[bufferSize];
-			collect = new short[bufferSize];
-		}
-		
-		public void collectPacketData(byte[] data, int length) {
-			streamer.getCodecs().decodeAudioData(data, length, collect, offset);
-			offset += Codecs.AudioFrameSize;
-			if (offset >= collect.length) {
-				synchronized(this) {
-					System.arraycopy(collect, 0, buffer, 0, bufferSize);
-				}
-				offset = 0;
-			}
+			frame = new short[Codecs.AudioFrameSize];
 		}
 		
 		@Override
@@ -167,7 +331,7 @@ public class Audio {
 				SampleRate,
 				AudioFormat.CHANNEL_OUT_MONO,
 				AudioFormat.ENCODING_PCM_16BIT,
-				buffer.length * 2,	// byte length
+				bufferSize * 2,	// byte length
 				AudioTrack.MODE_STREAM);
 			if (speaker.getState() != AudioTrack.STATE_INITIALIZED) {
 				Logg.d(TAG, "couldn't initialize speaker");
@@ -177,11 +341,11 @@ public class Audio {
 			speaker.setStereoVolume(1, 1);
 			speaker.play();
 			
+			// write blocks once the track is full, so
+			// this pulls frames at the playback rate
 			while (inPump()) {
-				synchronized(this) {
-					speaker.write(buffer, 0, buffer.length);
-					Arrays.fill(buffer, (short) 0);
-				}
+				jitterBuffer.pull(frame);
+				speaker.write(frame, 0, frame.length);
 			}
 			
 			speaker.stop();
@@ -0,0 +1,226 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * pool of reusable byte buffers, shared by the streaming stages
+ *
+ * buffers come in power of two size classes, and a lease is
+ * served from the smallest class that fits. each buffer is
+ * reference counted: the leaseholder may retain() it to hand
+ * it on, and it goes back to the pool when the last holder
+ * releases it. each class keeps a bounded number of free
+ * buffers, so the footprint stays bounded however uneven the
+ * load; once streaming settles into a steady state, every
+ * lease is a hit and nothing is allocated.
+ *
+ * buffers are heap backed, so byte array code can work on
+ * array() directly. may be used from any thread.
+ */
+public class BufferPool {
+
+	// smallest and largest size classes, as powers of two
+	static int MinShift = 8;
+	static int MaxShift = 21;
+
+	// most bytes of free buffers kept per size class, and
+	// the fewest buffers, for the largest classes
+	static int MaxFreeBytes = 256 * 1024;
+	static int MinFree = 2;
+
+	// pool shared by the streaming stages
+	static final BufferPool Shared = new BufferPool();
+
+	/**
+	 * leased buffer
+	 */
+	public static class Buffer {
+		// buffer data, cleared on lease
+		public final ByteBuffer data;
+		// size class, or -1 if too large to pool
+		final int cls;
+		// holders of this buffer
+		final AtomicInteger refs = new AtomicInteger();
+		// pool it came from
+		final BufferPool pool;
+
+		Buffer(BufferPool pool, int size, int cls) {
+			this.pool = pool;
+			this.cls = cls;
+			data = ByteBuffer.wrap(new byte[size]);
+		}
+
+		/**
+		 * @return backing array of the buffer
+		 */
+		public byte[] array() {
+			return data.array();
+		}
+
+		/**
+		 * add a holder, e.g. before handing the buffer on
+		 * @return this buffer
+		 */
+		public Buffer retain() {
+			if (refs.getAndIncrement() <= 0) {
+				throw new IllegalStateException("buffer retained after release");
+			}
+			return this;
+		}
+
+		/**
+		 * drop a holder, returning the buffer to the pool
+		 * if it was the last one
+		 */
+		public void release() {
+			int n = refs.decrementAndGet();
+			if (n == 0) {
+				pool.recycle(this);
+			} else if (n < 0) {
+				throw new IllegalStateException("buffer released twice");
+			}
+		}
+	}
+
+	// free buffers per size class, used as stacks
+	Buffer[][] free;
+	int[] freeCount;
+
+	// leases served from the free lists, and by allocating
+	AtomicLong hits = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+
+	// bytes out on lease now, and the most ever at once
+	AtomicLong leased = new AtomicLong();
+	AtomicLong highWater = new AtomicLong();
+
+	// bytes allocated by the pool and not yet let go
+	AtomicLong footprint = new AtomicLong();
+
+	/**
+	 * @return pool shared by the streaming stages
+	 */
+	public static BufferPool getShared() {
+		return Shared;
+	}
+
+	/**
+	 * ctor
+	 */
+	public BufferPool() {
+		int n = MaxShift - MinShift + 1;
+		free = new Buffer[n][];
+		for (int i = 0; i < n; i++) {
+			free[i] = new Buffer[Math.max(MinFree, MaxFreeBytes >> (i + MinShift))];
+		}
+		freeCount = new int[n];
+	}
+
+	/**
+	 * lease a buffer
+	 * @param size least capacity wanted in bytes
+	 * @return cleared buffer with a capacity of at least size,
+	 * to be released when done with
+	 */
+	public Buffer lease(int size) {
+		int cls = classOf(size);
+		Buffer b = null;
+		if (cls >= 0) {
+			synchronized (free[cls]) {
+				int n = freeCount[cls];
+				if (n > 0) {
+					b = free[cls][--n];
+					free[cls][n] = null;
+					freeCount[cls] = n;
+				}
+			}
+		}
+		if (b != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			b = new Buffer(this, cls >= 0 ? 1 << (cls + MinShift) : size, cls);
+			footprint.addAndGet(b.data.capacity());
+		}
+		b.refs.set(1);
+		b.data.clear();
+		long out = leased.addAndGet(b.data.capacity());
+		long high;
+		while (out > (high = highWater.get())) {
+			if (highWater.compareAndSet(high, out)) {
+				break;
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * @return number of leases served without allocating
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of leases that had to allocate
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return bytes out on lease now
+	 */
+	public long getLeased() {
+		return leased.get();
+	}
+
+	/**
+	 * @return most bytes ever out on lease at once
+	 */
+	public long getHighWater() {
+		return highWater.get();
+	}
+
+	/**
+	 * @return bytes held by the pool, leased or free
+	 */
+	public long getFootprint() {
+		return footprint.get();
+	}
+
+	/**
+	 * @return size class for a lease, or -1 if too large
+	 */
+	static int classOf(int size) {
+		int shift = MinShift;
+		while ((1 << shift) < size) {
+			if (++shift > MaxShift) {
+				return -1;
+			}
+		}
+		return shift - MinShift;
+	}
+
+	/**
+	 * take back a buffer whose last holder let it go
+	 */
+	void recycle(Buffer b) {
+		int capacity = b.data.capacity();
+		leased.addAndGet(-capacity);
+		if (b.cls >= 0) {
+			synchronized (free[b.cls]) {
+				int n = freeCount[b.cls];
+				if (n < free[b.cls].length) {
+					free[b.cls][n] = b;
+					freeCount[b.cls] = n + 1;
+					return;
+				}
+			}
+		}
+		// class is full or buffer too large, so let it go
+		footprint.addAndGet(-capacity);
+	}
+}
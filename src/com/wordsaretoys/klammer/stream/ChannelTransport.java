@@ -0,0 +1,47 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * transport over a blocking UDP datagram channel
+ */
+public class ChannelTransport implements Transport {
+
+	// datagram channel
+	DatagramChannel channel;
+	
+	/**
+	 * ctor, opens and binds the channel
+	 * @param port local port to bind to
+	 * @param bufferSize socket send and receive buffer size
+	 */
+	public ChannelTransport(int port, int bufferSize) throws IOException {
+		channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(port));
+			channel.socket().setReceiveBufferSize(bufferSize);
+			channel.socket().setSendBufferSize(bufferSize);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	@Override
+	public InetSocketAddress receive(ByteBuffer dst) throws IOException {
+		return (InetSocketAddress) channel.receive(dst);
+	}
+
+	@Override
+	public void send(ByteBuffer src, InetSocketAddress target) throws IOException {
+		channel.send(src, target);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,232 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * buffer side of a codec, as used frame by frame
+ *
+ * handles the dequeue, copy, queue and release cycle of a
+ * codec's input and output buffers. the buffer arrays, the
+ * 16-bit sample views on them, and the description of the
+ * last output are made when the codec starts or changes its
+ * buffers, and reused for every frame after, so a codec in
+ * its steady state allocates nothing.
+ *
+ * the codec itself is reached through the abstract methods,
+ * which MediaCodecPort maps onto a MediaCodec. nothing here
+ * touches the Android framework, so the per-frame handling
+ * can be run and tested on a desktop JVM against a fake.
+ *
+ * like the codec, the input side is for one thread at a time,
+ * and the output side is for one thread at a time.
+ */
+public abstract class CodecPort {
+
+	// output dequeue results, the same as MediaCodec's
+	public static final int TryAgainLater = -1;
+	public static final int OutputFormatChanged = -2;
+	public static final int OutputBuffersChanged = -3;
+
+	// buffer flags, the same as MediaCodec's
+	public static final int FlagSyncFrame = 1;
+	public static final int FlagCodecConfig = 2;
+
+	// input and output buffers
+	ByteBuffer[] inBuffers, outBuffers;
+
+	// 16-bit sample views on the buffers
+	ShortBuffer[] inViews, outViews;
+
+	// description of the output last dequeued; set by
+	// dequeueOutputBuffer() in subclass
+	int offset, size, flags;
+	long presentationTimeUs;
+
+	/**
+	 * fetch the codec's buffers; call once it's started
+	 */
+	public void fetchBuffers() {
+		inBuffers = getInputBuffers();
+		inViews = asShortBuffers(inBuffers);
+		fetchOutputBuffers();
+	}
+
+	/**
+	 * queue a frame from an array
+	 * @param data frame data
+	 * @param length length of the frame in bytes
+	 * @param timeUs presentation time in us
+	 * @param flags buffer flags
+	 * @param timeoutUs time to wait for an input buffer in us
+	 * @return false if no input buffer came free in time
+	 */
+	public boolean queue(byte[] data, int length, long timeUs, int flags, long timeoutUs) {
+		int index = dequeueInputBuffer(timeoutUs);
+		if (index < 0) {
+			return false;
+		}
+		ByteBuffer ib = inBuffers[index];
+		ib.clear();
+		ib.put(data, 0, length);
+		queueInputBuffer(index, 0, length, timeUs, flags);
+		return true;
+	}
+
+	/**
+	 * queue a frame from a buffer
+	 * @param data frame data, from position to limit
+	 * @param timeUs presentation time in us
+	 * @param flags buffer flags
+	 * @param timeoutUs time to wait for an input buffer in us
+	 * @return false if no input buffer came free in time
+	 */
+	public boolean queue(ByteBuffer data, long timeUs, int flags, long timeoutUs) {
+		int index = dequeueInputBuffer(timeoutUs);
+		if (index < 0) {
+			return false;
+		}
+		ByteBuffer ib = inBuffers[index];
+		int length = data.remaining();
+		ib.clear();
+		ib.put(data);
+		queueInputBuffer(index, 0, length, timeUs, flags);
+		return true;
+	}
+
+	/**
+	 * queue a frame of 16-bit samples
+	 * @param samples sample data
+	 * @param start index of the first sample
+	 * @param count number of samples
+	 * @param timeUs presentation time in us
+	 * @param timeoutUs time to wait for an input buffer in us
+	 * @return false if no input buffer came free in time
+	 */
+	public boolean queue(short[] samples, int start, int count, long timeUs, long timeoutUs) {
+		int index = dequeueInputBuffer(timeoutUs);
+		if (index < 0) {
+			return false;
+		}
+		ShortBuffer ib = inViews[index];
+		ib.clear();
+		ib.put(samples, start, count);
+		queueInputBuffer(index, 0, count * 2, timeUs, 0);
+		return true;
+	}
+
+	/**
+	 * wait for the next output, dealing with any change of
+	 * buffers or format that comes out ahead of it
+	 *
+	 * the output is described by offset, size, flags and
+	 * presentationTimeUs until the next call.
+	 *
+	 * @param timeoutUs time to wait for an output in us
+	 * @return index of the output buffer, or a negative
+	 * value if none came out in time
+	 */
+	public int next(long timeoutUs) {
+		for (;;) {
+			int index = dequeueOutputBuffer(timeoutUs);
+			if (index == OutputBuffersChanged) {
+				fetchOutputBuffers();
+			} else if (index == OutputFormatChanged) {
+				onOutputFormatChanged();
+			} else {
+				return index;
+			}
+		}
+	}
+
+	/**
+	 * get the buffer of the last output
+	 * @param index index of the output buffer
+	 * @return buffer, from position to limit
+	 */
+	public ByteBuffer getOutput(int index) {
+		ByteBuffer ob = outBuffers[index];
+		ob.clear();
+		ob.position(offset).limit(offset + size);
+		return ob;
+	}
+
+	/**
+	 * copy the last output into an array
+	 * @param index index of the output buffer
+	 * @param data array to copy into, from the start
+	 * @return number of bytes copied
+	 */
+	public int read(int index, byte[] data) {
+		ByteBuffer ob = outBuffers[index];
+		int length = Math.min(size, data.length);
+		ob.clear();
+		ob.position(offset);
+		ob.get(data, 0, length);
+		return length;
+	}
+
+	/**
+	 * copy the last output into an array of 16-bit samples
+	 * @param index index of the output buffer
+	 * @param samples array to copy into
+	 * @param start index of the first sample to write
+	 * @return number of samples copied
+	 */
+	public int read(int index, short[] samples, int start) {
+		ShortBuffer ob = outViews[index];
+		int count = Math.min(size >> 1, samples.length - start);
+		ob.clear();
+		ob.position(offset >> 1);
+		ob.get(samples, start, count);
+		return count;
+	}
+
+	/**
+	 * hand an output buffer back to the codec
+	 * @param index index of the output buffer
+	 * @param render true to render it to the codec's surface
+	 */
+	public void releaseOutput(int index, boolean render) {
+		releaseOutputBuffer(index, render);
+	}
+
+	/**
+	 * called when the codec's output format changes
+	 * override in subclass
+	 */
+	protected void onOutputFormatChanged() {}
+
+	protected abstract ByteBuffer[] getInputBuffers();
+	protected abstract ByteBuffer[] getOutputBuffers();
+	protected abstract int dequeueInputBuffer(long timeoutUs);
+	protected abstract void queueInputBuffer(int index, int offset, int size, long timeUs, int flags);
+	protected abstract int dequeueOutputBuffer(long timeoutUs);
+	protected abstract void releaseOutputBuffer(int index, boolean render);
+
+	/**
+	 * refetch the output buffers and their views
+	 */
+	void fetchOutputBuffers() {
+		outBuffers = getOutputBuffers();
+		outViews = asShortBuffers(outBuffers);
+	}
+
+	/**
+	 * make 16-bit sample views on codec buffers; a decoder
+	 * rendering to a surface may have no output buffers
+	 */
+	static ShortBuffer[] asShortBuffers(ByteBuffer[] buffers) {
+		if (buffers == null) {
+			return null;
+		}
+		ShortBuffer[] views = new ShortBuffer[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			if (buffers[i] != null) {
+				buffers[i].clear();
+				views[i] = buffers[i].asShortBuffer();
+			}
+		}
+		return views;
+	}
+}
@@ -1,15 +1,15 @@
 package com.wordsaretoys.klammer.stream;
 
 import java.nio.ByteBuffer;
-import java.nio.ShortBuffer;
 
 import android.media.MediaCodec;
-import android.media.MediaCodec.BufferInfo;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.SystemClock;
 import android.view.SurfaceView;
 
 import com.wordsaretoys.klammer.util.Logg;
+import com.wordsaretoys.klammer.util.YuvLayout;
 
 /**
  * maintains audio and video codec state/functions
@@ -26,7 +26,16 @@ public class Codecs {
 	static int VideoBitRate = 500000;
 	static int VideoFrameRate = 15;
 	static int VideoKeyFrameInterval = 5;
+	
+	// smallest bit rate change, in percent, worth restarting 
+	// the encoder for, and the least time between restarts in ms
+	static int RetuneThreshold = 15;
+	static int RetuneInterval = 2000;
 
+	// decode latency past which a frame is stale, and 
+	// isn't rendered if a newer one is ready behind it, in ms
+	static int StaleLatency = 100;
+	
 	// audio format parameters
 	static String AudioMimeType = "audio/3gpp";
 	static int AudioBitRate = 12200;
@@ -36,14 +45,51 @@ public class Codecs {
 	// parent streamer object
 	Streamer streamer;
 
-	// video codecs
-	MediaCodec videoEncoder, videoDecoder;
+	// video codecs; the decoder is null until the remote
+	// view's surface exists, and after release
+	Encoder videoEncoder;
+	MediaCodecPort videoDecoder;
+	
+	// video decoder lock; the decoder is only used by the
+	// video decoder thread, but set and released by the UI's
+	final Object decoderLock = new Object();
+	
+	// decoder the cached config was last given to, or null
+	// if the current config hasn't been given to any yet;
+	// video decoder thread only
+	MediaCodecPort configuredDecoder;
+	
+	// audio codecs; the encoder is for the recorder thread,
+	// the decoder for the audio decoder thread
+	MediaCodecPort audioEncoder, audioDecoder;
+	
+	// codec configuration data from the video encoder,
+	// leased from the buffer pool
+	volatile BufferPool.Buffer videoConfig;
+	
+	// codec configuration data given to the video decoder;
+	// set on the video decoder thread, reset on the reader's
+	volatile byte[] decoderConfig;
+	
+	// current video encoder settings; width and height are
+	// the camera's, which the encoder gets divided by scale
+	int videoWidth, videoHeight;
+	int videoScale = 1;
+	int videoBitRate = VideoBitRate;
+	int videoFrameRate = VideoFrameRate;
+	
+	// time of the last encoder retune
+	long lastRetune;
 	
-	// audio codecs
-	MediaCodec audioEncoder, audioDecoder;
+	// true when the encoder should restart to make a keyframe
+	volatile boolean keyFrameWanted;
 	
-	// codec configuration packet data
-	byte[] videoConfig;
+	// frames fed to the video decoder, rendered, and skipped
+	// as stale, and the most recent and worst input to render
+	// latency, and a running mean, in ms
+	volatile int decoderFed, decoderRendered, decoderSkipped;
+	volatile int decodeLatency, maxDecodeLatency;
+	volatile float meanDecodeLatency;
 
 	/**
 	 * ctor
@@ -62,20 +108,106 @@ public class Codecs {
 		// don't assume your requested frame rate, bit rate, 
 		// picture size, etc, will be available...coordinate
 		// with the available camera profiles.
-		videoEncoder = MediaCodec.createEncoderByType(VideoMimeType);
-
-		MediaFormat format = 
-				MediaFormat.createVideoFormat(VideoMimeType, width, height);
-		format.setInteger(MediaFormat.KEY_BIT_RATE, VideoBitRate);
-		format.setInteger(MediaFormat.KEY_FRAME_RATE, VideoFrameRate);
+		videoWidth = width;
+		videoHeight = height;
+		videoScale = 1;
+		videoEncoder = new Encoder("video-encoder", VideoMimeType) {
+			@Override
+			protected void onConfig(ByteBuffer data) {
+				// make a copy of it, for sending out of band
+				BufferPool.Buffer config = BufferPool.getShared().lease(data.remaining());
+				config.data.put(data);
+				config.data.flip();
+				BufferPool.Buffer old = videoConfig;
+				videoConfig = config;
+				if (old != null) {
+					old.release();
+				}
+			}
+			@Override
+			protected void onFrame(byte[] data, int length, long time, boolean keyFrame) {
+				streamer.getVideo().onEncodedFrame(data, length, time, keyFrame);
+			}
+		};
+		videoEncoder.start(createVideoEncoderFormat());
+	}
+	
+	/**
+	 * build the video encoder format from current settings
+	 */
+	MediaFormat createVideoEncoderFormat() {
+		MediaFormat format = MediaFormat.createVideoFormat(
+				VideoMimeType, getVideoWidth(), getVideoHeight());
+		format.setInteger(MediaFormat.KEY_BIT_RATE, videoBitRate);
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, videoFrameRate);
 		format.setInteger(
 				MediaFormat.KEY_COLOR_FORMAT, 
 				MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar);
 		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VideoKeyFrameInterval);
-
-		videoEncoder.configure(format, null, null, 
-				MediaCodec.CONFIGURE_FLAG_ENCODE);
-		videoEncoder.start();
+		return format;
+	}
+	
+	/**
+	 * change the video encoder's target rates and picture
+	 * size mid-stream
+	 * 
+	 * our API level has no way to change the bit rate of a
+	 * running codec, so this restarts it with the new format,
+	 * which costs a keyframe; small or frequent changes are
+	 * ignored. the picture size is a rung of the resolution
+	 * ladder: the camera size divided by a whole factor. frames
+	 * fed after this must be of the size getVideoWidth() and
+	 * getVideoHeight() then return. call from the thread that
+	 * encodes video.
+	 * 
+	 * @param bitRate target bit rate in bits per second
+	 * @param frameRate target frame rate
+	 * @param scale factor to divide the camera size by
+	 */
+	public void retuneVideoEncoder(int bitRate, int frameRate, int scale) {
+		if (videoEncoder == null) {
+			return;
+		}
+		boolean change = keyFrameWanted ||
+				frameRate != videoFrameRate || scale != videoScale ||
+				Math.abs(bitRate - videoBitRate) * 100 >= videoBitRate * RetuneThreshold;
+		long now = SystemClock.elapsedRealtime();
+		if (!change || now - lastRetune < RetuneInterval) {
+			return;
+		}
+		lastRetune = now;
+		keyFrameWanted = false;
+		videoBitRate = bitRate;
+		videoFrameRate = frameRate;
+		videoScale = scale;
+		Logg.d(TAG, "retuning video encoder to " + bitRate + " bps, " + frameRate + " fps, " +
+				getVideoWidth() + "x" + getVideoHeight());
+		videoEncoder.restart(createVideoEncoderFormat());
+	}
+	
+	/**
+	 * ask for a keyframe, e.g. after a frame couldn't be sent
+	 * 
+	 * our API level can't ask a running codec for one, so the
+	 * encoder is restarted on the next retune, which starts
+	 * it over with a keyframe. safe to call from any thread.
+	 */
+	public void requestVideoKeyFrame() {
+		keyFrameWanted = true;
+	}
+	
+	/**
+	 * @return width of the frames the video encoder takes
+	 */
+	public int getVideoWidth() {
+		return YuvLayout.scaleDimension(videoWidth, videoScale);
+	}
+	
+	/**
+	 * @return height of the frames the video encoder takes
+	 */
+	public int getVideoHeight() {
+		return YuvLayout.scaleDimension(videoHeight, videoScale);
 	}
 
 	/**
@@ -84,29 +216,36 @@ public class Codecs {
 	 */
 	public void acquireVideoDecoder(SurfaceView surfaceView) {
 		
-		videoDecoder = MediaCodec.createDecoderByType(VideoMimeType);
+		MediaCodec decoder = MediaCodec.createDecoderByType(VideoMimeType);
 
 		MediaFormat format = 
 				MediaFormat.createVideoFormat(VideoMimeType,
 						surfaceView.getWidth(),
 						surfaceView.getHeight() );
-		videoDecoder.configure(format, 
+		decoder.configure(format, 
 				surfaceView.getHolder().getSurface(), null, 0);
-		videoDecoder.start();
+		MediaCodecPort port = new MediaCodecPort("video decoder", decoder);
+		port.start();
+		// the decoder thread may use it from here on, and 
+		// gives it the config ahead of its first frame
+		synchronized (decoderLock) {
+			decoderFed = decoderRendered = decoderSkipped = 0;
+			videoDecoder = port;
+		}
 	}
 
 	/**
 	 * stop and release the video codecs
 	 */
 	public void releaseVideoCodecs() {
-		try { 
-			videoDecoder.stop();
-			videoDecoder.release();			
-		} catch (IllegalStateException e) {}
-		try { 
-			videoEncoder.stop();
-			videoEncoder.release();			
-		} catch (IllegalStateException e) {}
+		// waits out any decode in progress
+		synchronized (decoderLock) {
+			if (videoDecoder != null) {
+				videoDecoder.release();
+				videoDecoder = null;
+			}
+		}
+		videoEncoder.release();
 	}
 	
 	/**
@@ -120,12 +259,14 @@ public class Codecs {
 		format.setInteger(MediaFormat.KEY_BIT_RATE, AudioBitRate);
 		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, bufferSize * 2);
 
-		audioEncoder = MediaCodec.createEncoderByType(AudioMimeType);
-		audioEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		MediaCodec encoder = MediaCodec.createEncoderByType(AudioMimeType);
+		encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		audioEncoder = new MediaCodecPort("audio encoder", encoder);
 		audioEncoder.start();
 		
-		audioDecoder = MediaCodec.createDecoderByType(AudioMimeType);
-		audioDecoder.configure(format, null, null, 0);
+		MediaCodec decoder = MediaCodec.createDecoderByType(AudioMimeType);
+		decoder.configure(format, null, null, 0);
+		audioDecoder = new MediaCodecPort("audio decoder", decoder);
 		audioDecoder.start();
 	}
 
@@ -133,125 +274,249 @@ public class Codecs {
 	 * stop and release the audio codecs
 	 */
 	public void releaseAudioCodecs() {
-		try {
-			audioDecoder.stop();
-			audioDecoder.release();
-		} catch (IllegalStateException e) {}
-		try {
-			audioEncoder.stop();
-			audioEncoder.release();
-		} catch (IllegalStateException e) {}
+		audioDecoder.release();
+		audioEncoder.release();
 	}
 	
 	/**
-	 * encode a frame of video data
+	 * feed a frame of video data to the encoder
+	 * 
+	 * doesn't wait on the encoder; encoded frames come out
+	 * later on its drain thread, through Video.onEncodedFrame(),
+	 * and codec config data is kept for getVideoConfig(), to be 
+	 * sent alongside keyframes.
+	 * 
+	 * @param frame raw frame data
+	 * @param length length of the frame data in bytes
+	 * @param time capture time of the frame from Network.getTime()
+	 * @return false if the encoder was too busy to take it
 	 */
-	public int encodeVideoFrame(byte[] frame, byte[] data) {
-
-		try {
-			// place the frame data into the encoder
-			ByteBuffer[] inBuffers = videoEncoder.getInputBuffers(); 
-			int index = videoEncoder.dequeueInputBuffer(Timeout);
-			if (index >= 0) {
-				ByteBuffer ib = inBuffers[index];
-				ib.clear();
-				ib.put(frame);
-				videoEncoder.queueInputBuffer(
-						index, 0, 
-						frame.length, 0, 0);
+	public boolean encodeVideoFrame(byte[] frame, int length, long time) {
+		return videoEncoder.feed(frame, length, time);
+	}
+	
+	/**
+	 * get the codec config data last output by the video encoder
+	 * @return config data, from position to limit, or null if
+	 * none yet; retain it to keep it past the next config
+	 */
+	public BufferPool.Buffer getVideoConfig() {
+		return videoConfig;
+	}
+	
+	/**
+	 * get the video encoder
+	 * @return encoder object, or null if none
+	 */
+	public Encoder getVideoEncoder() {
+		return videoEncoder;
+	}
+	
+	/**
+	 * give the video decoder the peer's codec config data
+	 * 
+	 * the config is cached, and only passed to the decoder 
+	 * when it changes, as the encoder repeats it with every 
+	 * keyframe, or ahead of the first frame for a new decoder.
+	 * video decoder thread only
+	 * 
+	 * @param config config data, from position to limit
+	 */
+	public void setVideoDecoderConfig(ByteBuffer config) {
+		int length = config.remaining();
+		if (decoderConfig != null && decoderConfig.length == length) {
+			boolean same = true;
+			int p = config.position();
+			for (int i = 0; i < length && same; i++) {
+				same = decoderConfig[i] == config.get(p + i);
+			}
+			if (same) {
+				return;
 			}
-		} catch (IllegalStateException e) {
-			Logg.d(TAG, "illegal state encountered during video encode input");
-			return 0;
 		}
-		
+		decoderConfig = new byte[length];
+		config.get(decoderConfig);
+		configuredDecoder = null;
+		synchronized (decoderLock) {
+			if (videoDecoder != null) {
+				queueVideoDecoderConfig(videoDecoder);
+			}
+		}
+	}
+	
+	/**
+	 * forget the cached decoder config, e.g. when the peer restarts
+	 */
+	public void resetVideoDecoderConfig() {
+		decoderConfig = null;
+	}
+	
+	/**
+	 * pass the cached config data to the video decoder
+	 * video decoder thread only, with the decoder lock held
+	 * @param decoder video decoder
+	 * @return false if there's no config, or it couldn't be
+	 * queued, in which case the next frame tries again
+	 */
+	boolean queueVideoDecoderConfig(MediaCodecPort decoder) {
+		byte[] config = decoderConfig;
+		if (config == null) {
+			return false;
+		}
 		try {
-			// retreive the encoded data into a buffer
-			ByteBuffer[] outBuffers = videoEncoder.getOutputBuffers();
-			BufferInfo info = new BufferInfo();
-			int index = videoEncoder.dequeueOutputBuffer(info, Timeout);
-			if (index >= 0) {
-				ByteBuffer ob = outBuffers[index];
-				// if this is codec config data
-				if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-					// make a copy of it
-					videoConfig = new byte[info.size];
-					ob.get(data, 0, info.size);
-					System.arraycopy(data, 0, videoConfig, 0, info.size);
-				} else {
-					// attach the config data as a header to all others
-					// (initial packet with config data may be lost...)
-					System.arraycopy(videoConfig, 0, data, 0, videoConfig.length);
-					ob.get(data, videoConfig.length, info.size);
-					info.size += videoConfig.length;
-				}
-				ob.clear();
-				videoEncoder.releaseOutputBuffer(index, false);
-			} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-				outBuffers = videoEncoder.getOutputBuffers();
-			} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-				Logg.d(TAG, "video encoder format changed: "
-						+ videoEncoder.getOutputFormat());
+			if (decoder.queue(config, config.length, 0, 
+					CodecPort.FlagCodecConfig, Timeout)) {
+				configuredDecoder = decoder;
+				return true;
 			}
-			return info.size;
 		} catch (IllegalStateException e) {
-			Logg.d(TAG, "illegal state encountered during video encode output");
-			return 0;
+			Logg.d(TAG, "illegal state encountered during video decoder config");
 		}
+		return false;
 	}
 	
 	/**
 	 * decode a packet of video data
-	 * will render frame to the configured surface
+	 * will render frames to the configured surface
+	 * video decoder thread only
+	 * @param data frame data, from position to limit
+	 * @return false if the frame was dropped for want of 
+	 * codec config data, or of a decoder to take it
 	 */
-	public void decodeVideoData(byte[] data, int length) {
-		
-		try {
-			ByteBuffer[] inBuffers = videoDecoder.getInputBuffers(); 
-			int index = videoDecoder.dequeueInputBuffer(Timeout);
-			if (index >= 0) {
-				ByteBuffer ib = inBuffers[index];
-				ib.clear();
-				ib.put(data, 0, length);
-				videoDecoder.queueInputBuffer(index, 0, length, 0, 0);
+	public boolean decodeVideoData(ByteBuffer data) {
+		synchronized (decoderLock) {
+			// config can arrive before the surface and its decoder
+			MediaCodecPort decoder = videoDecoder;
+			if (decoder == null || decoderConfig == null) {
+				return false;
 			}
-		} catch (IllegalStateException e) {
-			Logg.d(TAG, "illegal state encountered during video decode input");
-			return;
+			if (configuredDecoder != decoder && 
+					!queueVideoDecoderConfig(decoder)) {
+				return false;
+			}
+			
+			try {
+				// the input time rides through as the presentation
+				// time, so the output can tell how long it took
+				if (decoder.queue(data, System.nanoTime() / 1000, 0, Timeout)) {
+					decoderFed++;
+				}
+			} catch (IllegalStateException e) {
+				Logg.d(TAG, "illegal state encountered during video decode input");
+				return true;
+			}
+			
+			drainVideoDecoder();
+			return true;
 		}
-		
-		try {
-			BufferInfo info = new BufferInfo();
-			int index = videoDecoder.dequeueOutputBuffer(info, Timeout);
-			if (index >= 0) {
-				videoDecoder.releaseOutputBuffer(index, true);
-			} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-				//outBuffers = videoEncoder.getOutputBuffers();
-			} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-				Logg.d(TAG, "video decoder format changed: "
-					+ videoDecoder.getOutputFormat());
+	}
+	
+	/**
+	 * render every frame the video decoder has ready
+	 * 
+	 * waits a while for the first if any are still in the
+	 * decoder. when more than one is ready, stale ones are
+	 * released unrendered, so a decoder that has fallen 
+	 * behind catches up rather than stay behind.
+	 * 
+	 * video decoder thread only
+	 */
+	public void drainVideoDecoder() {
+		synchronized (decoderLock) {
+			MediaCodecPort decoder = videoDecoder;
+			if (decoder == null) {
+				return;
+			}
+			try {
+				// frame ready but not yet released, and its latency
+				int ready = -1;
+				int latency = 0;
+				boolean waiting = decoderRendered + decoderSkipped < decoderFed;
+				for (;;) {
+					int index = decoder.next(waiting && ready < 0 ? Timeout : 0);
+					waiting = false;
+					if (index < 0) {
+						break;
+					}
+					if (ready >= 0) {
+						// a newer one's behind it, so only show it if fresh
+						releaseVideoOutput(decoder, ready, latency, latency <= StaleLatency);
+					}
+					ready = index;
+					latency = (int)((System.nanoTime() / 1000 - 
+							decoder.presentationTimeUs) / 1000);
+				}
+				// the newest is always shown
+				if (ready >= 0) {
+					releaseVideoOutput(decoder, ready, latency, true);
+				}
+			} catch (IllegalStateException e) {
+				Logg.d(TAG, "illegal state encountered during video decode output");
 			}
-		} catch (IllegalStateException e) {
-			Logg.d(TAG, "illegal state encountered during video decode output");
 		}
 	}
+	
+	/**
+	 * @return number of frames rendered by the video decoder
+	 */
+	public int getDecoderRendered() {
+		return decoderRendered;
+	}
+	
+	/**
+	 * @return number of stale frames the video decoder skipped
+	 */
+	public int getDecoderSkipped() {
+		return decoderSkipped;
+	}
+	
+	/**
+	 * @return input to render latency of the last frame decoded, in ms
+	 */
+	public int getDecodeLatency() {
+		return decodeLatency;
+	}
+	
+	/**
+	 * @return running mean of the input to render latency, in ms
+	 */
+	public float getMeanDecodeLatency() {
+		return meanDecodeLatency;
+	}
+	
+	/**
+	 * @return worst input to render latency seen, in ms
+	 */
+	public int getMaxDecodeLatency() {
+		return maxDecodeLatency;
+	}
+	
+	/**
+	 * release a video decoder output buffer and count it
+	 */
+	void releaseVideoOutput(CodecPort decoder, int index, int latency, boolean render) {
+		decoder.releaseOutput(index, render);
+		if (render) {
+			decoderRendered++;
+		} else {
+			decoderSkipped++;
+		}
+		decodeLatency = latency;
+		if (latency > maxDecodeLatency) {
+			maxDecodeLatency = latency;
+		}
+		meanDecodeLatency += (latency - meanDecodeLatency) / 16;
+	}
 
 	/**
 	 * encode a frame of audio data
+	 * recorder thread only
 	 */
 	public int encodeAudioFrame(short[] frame, int offset, byte[] data) {
 
 		try {
 			// place the frame data into the encoder
-			ByteBuffer[] inBuffers = audioEncoder.getInputBuffers(); 
-			int index = audioEncoder.dequeueInputBuffer(Timeout);
-			if (index >= 0) {
-				ShortBuffer ib = inBuffers[index].asShortBuffer();
-				ib.clear();
-				ib.put(frame, offset, AudioFrameSize);
-				audioEncoder.queueInputBuffer(
-						index, 0, AudioFrameSize * 2, 0, 0);
-			}
+			audioEncoder.queue(frame, offset, AudioFrameSize, 0, Timeout);
 		} catch (IllegalStateException e) {
 			Logg.d(TAG, "illegal state encountered during audio encode input");
 			return 0;
@@ -259,21 +524,13 @@ public class Codecs {
 		
 		try {
 			// retreive the encoded data into a buffer
-			ByteBuffer[] outBuffers = audioEncoder.getOutputBuffers();
-			BufferInfo info = new BufferInfo();
-			int index = audioEncoder.dequeueOutputBuffer(info, Timeout);
-			if (index >= 0) {
-				ByteBuffer ob = outBuffers[index];
-				ob.get(data, 0, info.size);
-				ob.clear();
-				audioEncoder.releaseOutputBuffer(index, false);
-			} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-				outBuffers = audioEncoder.getOutputBuffers();
-			} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-				Logg.d(TAG, "audio encoder format changed: "
-						+ audioEncoder.getOutputFormat());
+			int index = audioEncoder.next(Timeout);
+			if (index < 0) {
+				return 0;
 			}
-			return info.size;
+			int length = audioEncoder.read(index, data);
+			audioEncoder.releaseOutput(index, false);
+			return length;
 		} catch (IllegalStateException e) {
 			Logg.d(TAG, "illegal state encountered during audio encode output");
 			return 0;
@@ -282,42 +539,31 @@ public class Codecs {
 	
 	/**
 	 * decode a packet of audio data
+	 * audio decoder thread only
+	 * @param data packet data, from position to limit
+	 * @return number of samples written to the frame
 	 */
-	public void decodeAudioData(byte[] data, int length, short[] frame, int offset) {
+	public int decodeAudioData(ByteBuffer data, short[] frame, int offset) {
 
 		// place packet data into the encoder
 		try {
-			ByteBuffer[] inBuffers = audioDecoder.getInputBuffers(); 
-			int index = audioDecoder.dequeueInputBuffer(Timeout);
-			if (index >= 0) {
-				ByteBuffer ib = inBuffers[index];
-				ib.clear();
-				ib.put(data, 0, length);
-				audioDecoder.queueInputBuffer(index, 0, length, 0, 0);
-			}
+			audioDecoder.queue(data, 0, 0, Timeout);
 		} catch (IllegalStateException e) {
 			Logg.d(TAG, "illegal state encountered during audio decode input");
-			return;
+			return 0;
 		}
 
+		int samples = 0;
 		try {
 			// retreive the decoded data into a buffer
-			ByteBuffer[] outBuffers = audioDecoder.getOutputBuffers();
-			BufferInfo info = new BufferInfo();
-			int index = audioDecoder.dequeueOutputBuffer(info, Timeout);
+			int index = audioDecoder.next(Timeout);
 			if (index >= 0) {
-				ShortBuffer ob = outBuffers[index].asShortBuffer();
-				ob.get(frame, offset, info.size >> 1);
-				ob.clear();
-				audioDecoder.releaseOutputBuffer(index, false);
-			} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-				outBuffers = audioDecoder.getOutputBuffers();
-			} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-				Logg.d(TAG, "audio decoder format changed: "
-						+ audioDecoder.getOutputFormat());
+				samples = audioDecoder.read(index, frame, offset);
+				audioDecoder.releaseOutput(index, false);
 			}
 		} catch (IllegalStateException e) {
 			Logg.d(TAG, "illegal state encountered during audio decode output");
 		}
+		return samples;
 	}
 }
@@ -0,0 +1,244 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * bounded queue of received media waiting to be decoded
+ *
+ * the reader thread copies each payload into a pooled entry
+ * and goes straight back to the socket; a decoder thread
+ * takes entries off and decodes them at its own pace. what
+ * happens when the decoder falls behind is up to the policy:
+ * DropOldest throws away the oldest waiting entry, which
+ * suits video, where a late frame is worth little, and Wait
+ * holds the reader a little while for room, for audio, which
+ * shouldn't be dropped if it can be helped. the wait is kept
+ * short, as the reader serves every stream and the control
+ * messages too; past it, Wait drops the oldest as well.
+ * entries that isDroppable() says must be kept, like codec
+ * config, are never dropped to make room. either way, it's
+ * counted.
+ *
+ * one producer thread and one consumer thread only.
+ */
+public class DecodeQueue {
+
+	// overflow policies
+	public static final int DropOldest = 0;
+	public static final int Wait = 1;
+
+	// time to wait for an entry before giving up, in ms
+	static int Timeout = 100;
+
+	// longest time the producer waits for room, in ms
+	static int WaitLimit = 20;
+
+	/**
+	 * queued payload
+	 */
+	public static class Entry {
+		// payload, from position to limit
+		public ByteBuffer data;
+		// capture time, local arrival time, and what it is
+		public int timestamp, arrival, kind;
+
+		Entry(int size) {
+			data = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	// ring of waiting entries
+	Entry[] ring;
+	int head, count;
+
+	// entry handed to the consumer, swapped out of the ring
+	// so the producer can never overwrite it
+	Entry spare;
+
+	// largest payload in bytes
+	int size;
+
+	// overflow policy
+	int policy;
+
+	// counters
+	int queued, dropped, waited, highWater;
+
+	/**
+	 * ctor
+	 * @param capacity number of entries
+	 * @param size largest payload in bytes
+	 * @param policy DropOldest or Wait
+	 */
+	public DecodeQueue(int capacity, int size, int policy) {
+		ring = new Entry[capacity];
+		for (int i = 0; i < capacity; i++) {
+			ring[i] = new Entry(size);
+		}
+		spare = new Entry(size);
+		this.size = size;
+		this.policy = policy;
+	}
+
+	/**
+	 * copy a payload onto the queue
+	 * producer thread only
+	 * @param src payload, from position to limit; position is left
+	 * at the limit
+	 * @param timestamp capture time
+	 * @param arrival local arrival time
+	 * @param kind what the payload is, for the consumer
+	 * @return false if the payload is too large to queue, or
+	 * there was no room and nothing could be dropped for it
+	 */
+	public synchronized boolean put(ByteBuffer src, int timestamp, int arrival, int kind) {
+		if (src.remaining() > size) {
+			return false;
+		}
+		if (count == ring.length && policy == Wait) {
+			waited++;
+			long deadline = System.nanoTime() + WaitLimit * 1000000L;
+			while (count == ring.length) {
+				long left = (deadline - System.nanoTime()) / 1000000L;
+				if (left <= 0) {
+					break;
+				}
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+		}
+		if (count == ring.length && !dropOldest()) {
+			dropped++;
+			return false;
+		}
+		Entry e = ring[(head + count) % ring.length];
+		e.data.clear();
+		e.data.put(src);
+		e.data.flip();
+		e.timestamp = timestamp;
+		e.arrival = arrival;
+		e.kind = kind;
+		count++;
+		queued++;
+		if (count > highWater) {
+			highWater = count;
+		}
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * decides whether an entry may be dropped to make room
+	 * override in subclass
+	 * @param e waiting entry
+	 * @return true if it may be dropped
+	 */
+	protected boolean isDroppable(Entry e) {
+		return true;
+	}
+
+	/**
+	 * drop the oldest droppable entry, moving the ones ahead
+	 * of it up a place so the order is kept
+	 * @return false if there was none
+	 */
+	boolean dropOldest() {
+		int n = ring.length;
+		for (int k = 0; k < count; k++) {
+			Entry e = ring[(head + k) % n];
+			if (isDroppable(e)) {
+				for (int j = k; j > 0; j--) {
+					ring[(head + j) % n] = ring[(head + j - 1) % n];
+				}
+				ring[head] = e;
+				head = (head + 1) % n;
+				count--;
+				dropped++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * take the oldest entry, waiting a while if there is none
+	 * consumer thread only; hand it back with release()
+	 * before taking another
+	 * @return entry, or null if none arrived in time
+	 */
+	public synchronized Entry take() {
+		if (count == 0) {
+			try {
+				wait(Timeout);
+			} catch (InterruptedException e) {
+				return null;
+			}
+			if (count == 0) {
+				return null;
+			}
+		}
+		Entry e = ring[head];
+		ring[head] = spare;
+		spare = null;
+		head = (head + 1) % ring.length;
+		count--;
+		notifyAll();
+		return e;
+	}
+
+	/**
+	 * hand back an entry obtained from take()
+	 * consumer thread only
+	 */
+	public synchronized void release(Entry e) {
+		spare = e;
+	}
+
+	/**
+	 * throw away everything waiting, e.g. on a change of source
+	 */
+	public synchronized void clear() {
+		head = 0;
+		count = 0;
+		notifyAll();
+	}
+
+	/**
+	 * @return number of entries waiting
+	 */
+	public synchronized int getDepth() {
+		return count;
+	}
+
+	/**
+	 * @return most entries ever waiting at once
+	 */
+	public synchronized int getHighWater() {
+		return highWater;
+	}
+
+	/**
+	 * @return number of entries queued
+	 */
+	public synchronized int getQueued() {
+		return queued;
+	}
+
+	/**
+	 * @return number of entries dropped to make room, or
+	 * for want of it
+	 */
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return number of times the producer had to wait for room
+	 */
+	public synchronized int getWaited() {
+		return waited;
+	}
+}
@@ -0,0 +1,270 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.wordsaretoys.klammer.util.Logg;
+import com.wordsaretoys.klammer.util.Needle;
+
+/**
+ * MediaCodec encoder with separate feed and drain sides
+ *
+ * frames are fed in from the capture thread without waiting:
+ * if the codec has no free input buffer, the frame is dropped
+ * and counted. a drain thread takes every output the codec
+ * has ready each time it wakes and hands it on through the
+ * onConfig() and onFrame() hooks, so encoder latency never
+ * holds up capture and output never piles up in the codec.
+ *
+ * capture times ride through the codec as presentation
+ * times, so each output comes out with its own. they're
+ * kept as long ms from a monotonic clock all the way
+ * through, as an int clock would go negative within a
+ * month of uptime.
+ */
+public class Encoder {
+
+	static String TAG = "Encoder";
+
+	// output dequeue timeout in us
+	static final int Timeout = 10000;
+
+	// codec, and its buffers as a port
+	MediaCodec codec;
+	MediaCodecPort port;
+
+	// mime type of the codec
+	String mimeType;
+
+	// feed side lock, and drain side lock; restarting
+	// the codec takes both, feed first
+	final Object feedLock = new Object();
+	final Object drainLock = new Object();
+
+	// true while the codec is running
+	volatile boolean running;
+
+	// copy of the last output, drain thread only
+	BufferPool.Buffer out;
+
+	// frames fed, dropped for want of an input buffer,
+	// and come out the other end
+	volatile int fed, dropped, drained;
+
+	// drain thread
+	Drainer drainer;
+
+	/**
+	 * ctor
+	 * @param name name of the drain thread
+	 * @param mimeType mime type of the codec
+	 */
+	public Encoder(String name, String mimeType) {
+		this.mimeType = mimeType;
+		drainer = new Drainer(name);
+		drainer.start();
+	}
+
+	/**
+	 * create and start the codec
+	 * @param format encoder format
+	 */
+	public void start(MediaFormat format) {
+		synchronized (feedLock) {
+			synchronized (drainLock) {
+				codec = MediaCodec.createEncoderByType(mimeType);
+				port = new MediaCodecPort(mimeType + " encoder", codec);
+				configure(format);
+			}
+		}
+		drainer.resume();
+	}
+
+	/**
+	 * restart the codec with a new format, e.g. to change
+	 * the bit rate; outputs still in the codec are lost
+	 * @param format encoder format
+	 */
+	public void restart(MediaFormat format) {
+		synchronized (feedLock) {
+			synchronized (drainLock) {
+				if (codec == null) {
+					return;
+				}
+				running = false;
+				try {
+					codec.stop();
+				} catch (IllegalStateException e) {
+					Logg.d(TAG, "illegal state encountered during encoder stop");
+				}
+				configure(format);
+			}
+		}
+	}
+
+	/**
+	 * stop the drain thread and release the codec
+	 */
+	public void release() {
+		drainer.stop();
+		synchronized (feedLock) {
+			synchronized (drainLock) {
+				running = false;
+				if (codec != null) {
+					port.release();
+					codec = null;
+					port = null;
+				}
+				if (out != null) {
+					out.release();
+					out = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * feed a frame to the encoder, without waiting
+	 * @param frame raw frame data
+	 * @param length length of the frame data in bytes
+	 * @param time capture time in ms, returned with the output
+	 * @return false if the frame was dropped
+	 */
+	public boolean feed(byte[] frame, int length, long time) {
+		synchronized (feedLock) {
+			if (!running) {
+				return false;
+			}
+			try {
+				if (!port.queue(frame, length, time * 1000, 0, 0)) {
+					dropped++;
+					return false;
+				}
+				fed++;
+				return true;
+			} catch (IllegalStateException e) {
+				Logg.d(TAG, "illegal state encountered during encoder input");
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return number of frames fed to the encoder
+	 */
+	public int getFed() {
+		return fed;
+	}
+
+	/**
+	 * @return number of frames dropped for want of an input buffer
+	 */
+	public int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return number of encoded frames handed on
+	 */
+	public int getDrained() {
+		return drained;
+	}
+
+	/**
+	 * called on the drain thread with codec config data
+	 * override in subclass
+	 * @param data config data, from position to limit; only
+	 * valid for the duration of the call
+	 */
+	protected void onConfig(ByteBuffer data) {}
+
+	/**
+	 * called on the drain thread with an encoded frame
+	 * override in subclass
+	 * @param data frame data; only valid for the duration of the call
+	 * @param length length of the frame in bytes
+	 * @param time capture time given with the frame, in ms
+	 * @param keyFrame true if the frame is a keyframe
+	 */
+	protected void onFrame(byte[] data, int length, long time, boolean keyFrame) {}
+
+	/**
+	 * configure and start the codec, with both locks held
+	 */
+	void configure(MediaFormat format) {
+		try {
+			codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			port.start();
+			running = true;
+		} catch (IllegalStateException e) {
+			Logg.d(TAG, "illegal state encountered during encoder start");
+		}
+	}
+
+	/**
+	 * hand on every output the codec has ready
+	 * drain thread only
+	 */
+	void drain() {
+		synchronized (drainLock) {
+			if (!running) {
+				return;
+			}
+			try {
+				for (;;) {
+					int index = port.next(Timeout);
+					if (index < 0) {
+						break;
+					}
+					handleOutput(port.getOutput(index));
+					port.releaseOutput(index, false);
+				}
+			} catch (IllegalStateException e) {
+				Logg.d(TAG, "illegal state encountered during encoder output");
+			}
+		}
+	}
+
+	/**
+	 * pass one output buffer on to the hooks
+	 */
+	void handleOutput(ByteBuffer ob) {
+		int size = port.size;
+		int flags = port.flags;
+		if ((flags & CodecPort.FlagCodecConfig) != 0) {
+			onConfig(ob);
+		} else if (size > 0) {
+			if (out == null || out.data.capacity() < size) {
+				if (out != null) {
+					out.release();
+				}
+				out = BufferPool.getShared().lease(size);
+			}
+			ob.get(out.array(), 0, size);
+			drained++;
+			onFrame(out.array(), size,
+					port.presentationTimeUs / 1000,
+					(flags & CodecPort.FlagSyncFrame) != 0);
+		}
+		ob.clear();
+	}
+
+	/**
+	 * encoder output thread class
+	 */
+	class Drainer extends Needle {
+
+		public Drainer(String name) {
+			super(name, 1);
+		}
+
+		@Override
+		public void run() {
+			while (inPump()) {
+				drain();
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * fixed datagram header, loosely after RTP
+ *
+ *  0      version (high nybble), packet type (low nybble)
+ *  1      flags
+ *  2-3    sequence number, per stream, wraps at 16 bits
+ *  4-7    capture timestamp in milliseconds, wraps at 32 bits
+ *  8-11   stream source id
+ *
+ * all fields are big-endian, the ByteBuffer default. one
+ * instance is reused for every packet read, so parsing
+ * doesn't allocate.
+ */
+public class Header {
+
+	// header length in bytes
+	public static final int Size = 12;
+
+	// wire format version
+	public static final int Version = 1;
+
+	// flag bits
+	public static final int FlagParity = 0x01;
+	public static final int FlagRetransmit = 0x02;
+
+	// packet type
+	public int type;
+
+	// flag bits
+	public int flags;
+
+	// sequence number (0 - 65535)
+	public int sequence;
+
+	// capture timestamp
+	public int timestamp;
+
+	// stream source id
+	public int source;
+
+	/**
+	 * parse a header from the start of a packet
+	 * @param b packet buffer
+	 * @param length packet length
+	 * @return false if the packet is too short or the wrong version
+	 */
+	public boolean read(ByteBuffer b, int length) {
+		int b0 = b.get(0);
+		if (length < Size || (b0 & 0xf0) >> 4 != Version) {
+			return false;
+		}
+		type = b0 & 0x0f;
+		flags = b.get(1) & 0xff;
+		sequence = b.getShort(2) & 0xffff;
+		timestamp = b.getInt(4);
+		source = b.getInt(8);
+		return true;
+	}
+
+	/**
+	 * write a header to the start of a packet
+	 * @param b packet buffer, at least Size bytes long
+	 * @param timestamp capture time in ms; only the low 32 bits
+	 * go on the wire
+	 * @return header length
+	 */
+	public static int write(ByteBuffer b, int type, int flags,
+			int sequence, long timestamp, int source) {
+		b.put(0, (byte)(Version << 4 | (type & 0x0f)));
+		b.put(1, (byte) flags);
+		b.putShort(2, (short) sequence);
+		b.putInt(4, (int) timestamp);
+		b.putInt(8, source);
+		return Size;
+	}
+}
@@ -0,0 +1,118 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ring buffer of recently sent video packets, indexed by
+ * sequence number, so packets the receiver reports missing
+ * can be sent again
+ *
+ * written by the writer thread, read by the reader thread.
+ */
+public class History {
+
+	// number of packets remembered, a power of two, and
+	// more than the largest frame goes out as, so any part
+	// of it can still be resent
+	static final int Capacity = 256;
+
+	// least time between resends of the same packet in ms
+	static int Holdoff = 20;
+
+	// packet copies, lengths and sequence numbers
+	ByteBuffer[] data;
+	int[] length;
+	int[] sequence;
+
+	// time each packet was last resent
+	int[] resent;
+
+	// counters
+	int resends, expired, missing;
+
+	/**
+	 * ctor
+	 * @param size largest packet length in bytes
+	 */
+	public History(int size) {
+		data = new ByteBuffer[Capacity];
+		for (int i = 0; i < Capacity; i++) {
+			data[i] = ByteBuffer.allocateDirect(size);
+		}
+		length = new int[Capacity];
+		sequence = new int[Capacity];
+		resent = new int[Capacity];
+	}
+
+	/**
+	 * remember a packet that has just been sent
+	 * @param b packet buffer, starting with the packet header;
+	 *        its position and limit are changed
+	 * @param n packet length
+	 */
+	public synchronized void store(ByteBuffer b, int n) {
+		int seq = b.getShort(2) & 0xffff;
+		int i = seq & (Capacity - 1);
+		if (sequence[i] != seq || length[i] == 0) {
+			resent[i] = 0;
+		}
+		b.limit(n).position(0);
+		data[i].clear();
+		data[i].put(b);
+		length[i] = n;
+		sequence[i] = seq;
+	}
+
+	/**
+	 * copy out a packet for resending, flagged as a retransmission
+	 * @param seq sequence number of the packet
+	 * @param b destination buffer, filled from position 0
+	 * @param now local time in ms
+	 * @param deadline latest capture time + one-way delay
+	 *        at which a resend is still worth it
+	 * @return packet length, or 0 if it can't or needn't be resent
+	 */
+	public synchronized int fetch(int seq, ByteBuffer b, int now, int deadline) {
+		int i = seq & (Capacity - 1);
+		if (sequence[i] != seq || length[i] == 0) {
+			missing++;
+			return 0;
+		}
+		if (now - data[i].getInt(4) > deadline) {
+			expired++;
+			return 0;
+		}
+		if (resent[i] != 0 && now - resent[i] < Holdoff) {
+			return 0;
+		}
+		resent[i] = now;
+		resends++;
+		ByteBuffer src = data[i];
+		src.limit(length[i]).position(0);
+		b.clear();
+		b.put(src);
+		b.put(1, (byte)(b.get(1) | Header.FlagRetransmit));
+		return length[i];
+	}
+
+	/**
+	 * @return number of packets resent
+	 */
+	public int getResends() {
+		return resends;
+	}
+
+	/**
+	 * @return number of requests too late to be worth answering
+	 */
+	public int getExpired() {
+		return expired;
+	}
+
+	/**
+	 * @return number of requests for packets no longer remembered
+	 */
+	public int getMissing() {
+		return missing;
+	}
+}
@@ -0,0 +1,331 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import com.wordsaretoys.klammer.util.Needle;
+
+/**
+ * wraps a transport and makes its outgoing side misbehave
+ * like a bad network: random and burst loss, fixed delay,
+ * jitter, reordering, and a bandwidth cap with a bounded
+ * bottleneck queue. wrap both ends to impair both ways.
+ *
+ * every decision comes from one seeded random generator, in
+ * send order, so a given seed and packet sequence always
+ * loses, delays and reorders the same packets. only drops
+ * at the bandwidth cap depend on the timing of the sends.
+ * burst loss follows a two-state Gilbert-Elliott model.
+ * jitter doesn't reorder on its own; packets chosen for 
+ * reordering are held back an extra while so those behind
+ * them overtake.
+ *
+ * delayed packets are handed on by a delivery thread, at
+ * millisecond resolution. they wait in buffers leased from
+ * the shared pool, so impairing allocates nothing once warm.
+ */
+public class ImpairedTransport implements Transport {
+
+	static String TAG = "ImpairedTransport";
+
+	/**
+	 * datagram waiting to be delivered
+	 */
+	static class Datagram implements Comparable<Datagram> {
+		// copy of the datagram
+		BufferPool.Buffer data;
+		// where it's going
+		InetSocketAddress target;
+		// delivery time in ms, and send order for ties
+		long due;
+		long order;
+
+		@Override
+		public int compareTo(Datagram o) {
+			if (due != o.due) {
+				return due < o.due ? -1 : 1;
+			}
+			return order < o.order ? -1 : (order > o.order ? 1 : 0);
+		}
+	}
+
+	// transport being impaired
+	Transport inner;
+
+	// source of every impairment decision
+	Random random;
+
+	// chance of losing any one packet
+	float loss;
+
+	// chance of entering and leaving the burst loss state,
+	// and chance of losing a packet while in it
+	float burstEnter, burstExit, burstLoss;
+	boolean inBurst;
+
+	// one-way delay and most jitter added to it, in ms
+	int delay, jitter;
+
+	// chance of holding a packet back, and for how long in ms
+	float reorder;
+	int reorderDelay = 10;
+
+	// bottleneck rate in bits per second, 0 for no cap,
+	// and the most bytes that may queue up behind it
+	int bandwidth;
+	int queueLimit = 64 * 1024;
+
+	// time the bottleneck next falls idle, in us
+	long linkFree;
+
+	// delivery time of the last packet not reordered
+	long lastDue;
+
+	// packets waiting to be delivered, in order of due time
+	PriorityQueue<Datagram> pending;
+	long sent;
+	
+	// delivered datagram holders, for reuse
+	ArrayDeque<Datagram> spare;
+
+	// counters
+	int lost, burstLost, overflowed, reordered, delivered;
+
+	// delivery thread
+	Deliverer deliverer;
+
+	/**
+	 * ctor
+	 * @param inner transport to wrap
+	 * @param seed random seed
+	 */
+	public ImpairedTransport(Transport inner, long seed) {
+		this.inner = inner;
+		random = new Random(seed);
+		pending = new PriorityQueue<Datagram>();
+		spare = new ArrayDeque<Datagram>();
+		deliverer = new Deliverer();
+		deliverer.start();
+		deliverer.resume();
+	}
+
+	/**
+	 * set the random packet loss
+	 * @param p chance of losing each packet, 0 - 1
+	 */
+	public synchronized void setLoss(float p) {
+		loss = p;
+	}
+
+	/**
+	 * set the burst loss model
+	 * @param enter chance of a burst starting at each packet
+	 * @param exit chance of a burst ending at each packet
+	 * @param p chance of losing each packet during a burst
+	 */
+	public synchronized void setBurstLoss(float enter, float exit, float p) {
+		burstEnter = enter;
+		burstExit = exit;
+		burstLoss = p;
+	}
+
+	/**
+	 * set the one-way delay
+	 * @param delay fixed delay in ms
+	 * @param jitter most random delay added on top, in ms
+	 */
+	public synchronized void setDelay(int delay, int jitter) {
+		this.delay = delay;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * set the packet reordering
+	 * @param p chance of holding each packet back
+	 * @param hold time to hold it back in ms
+	 */
+	public synchronized void setReorder(float p, int hold) {
+		reorder = p;
+		reorderDelay = hold;
+	}
+
+	/**
+	 * set the bandwidth cap
+	 * @param bitRate bottleneck rate in bits per second, 0 for none
+	 * @param queueBytes bottleneck queue size in bytes
+	 */
+	public synchronized void setBandwidth(int bitRate, int queueBytes) {
+		bandwidth = bitRate;
+		queueLimit = queueBytes;
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer dst) throws IOException {
+		return inner.receive(dst);
+	}
+
+	@Override
+	public synchronized void send(ByteBuffer src, InetSocketAddress target) throws IOException {
+		int length = src.remaining();
+		long now = getTime();
+
+		// always draw the same numbers per packet, so one
+		// setting doesn't change the dice for the others
+		float r0 = random.nextFloat();
+		float r1 = random.nextFloat();
+		float r2 = random.nextFloat();
+		float r3 = random.nextFloat();
+		float r4 = random.nextFloat();
+
+		inBurst = inBurst ? r0 >= burstExit : r0 < burstEnter;
+		if (inBurst && r1 < burstLoss) {
+			burstLost++;
+			src.position(src.limit());
+			return;
+		}
+		if (r2 < loss) {
+			lost++;
+			src.position(src.limit());
+			return;
+		}
+
+		long due = now;
+		if (bandwidth > 0) {
+			long us = now * 1000;
+			long backlog = Math.max(0, linkFree - us) * bandwidth / 8000000L;
+			if (backlog + length > queueLimit) {
+				// tail drop at the bottleneck
+				overflowed++;
+				src.position(src.limit());
+				return;
+			}
+			linkFree = Math.max(linkFree, us) + length * 8000000L / bandwidth;
+			due = linkFree / 1000;
+		}
+		due += delay + (int)(r3 * (jitter + 1));
+		if (r4 < reorder) {
+			due += reorderDelay;
+			reordered++;
+		} else {
+			// keep to the order packets were sent in
+			due = Math.max(due, lastDue);
+			lastDue = due;
+		}
+
+		Datagram d = spare.poll();
+		if (d == null) {
+			d = new Datagram();
+		}
+		d.data = BufferPool.getShared().lease(length);
+		d.data.data.put(src);
+		d.data.data.flip();
+		d.target = target;
+		d.due = due;
+		d.order = sent++;
+		pending.add(d);
+	}
+
+	@Override
+	public void close() throws IOException {
+		deliverer.stop();
+		synchronized (this) {
+			Datagram d;
+			while ((d = pending.poll()) != null) {
+				d.data.release();
+			}
+		}
+		inner.close();
+	}
+
+	/**
+	 * @return packets lost at random
+	 */
+	public int getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return packets lost in bursts
+	 */
+	public int getBurstLost() {
+		return burstLost;
+	}
+
+	/**
+	 * @return packets dropped at the bandwidth cap
+	 */
+	public int getOverflowed() {
+		return overflowed;
+	}
+
+	/**
+	 * @return packets held back to reorder them
+	 */
+	public int getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * @return packets handed to the wrapped transport
+	 */
+	public int getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return current time in ms
+	 */
+	long getTime() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * take the next packet that's due, if any
+	 */
+	synchronized Datagram takeDue(long now) {
+		Datagram d = pending.peek();
+		if (d != null && d.due <= now) {
+			return pending.poll();
+		}
+		return null;
+	}
+
+	/**
+	 * return a delivered packet's buffer and holder
+	 */
+	synchronized void recycle(Datagram d) {
+		d.data.release();
+		d.data = null;
+		spare.offer(d);
+	}
+	
+	/**
+	 * hands on delayed packets as they fall due
+	 */
+	class Deliverer extends Needle {
+
+		public Deliverer() {
+			super("impairment", 1);
+		}
+
+		@Override
+		public void run() {
+			while (inPump()) {
+				Datagram d;
+				while ((d = takeDue(getTime())) != null) {
+					try {
+						inner.send(d.data.data, d.target);
+						delivered++;
+					} catch (IOException e) {
+						// wrapped transport closed; drop it
+					}
+					recycle(d);
+				}
+			}
+		}
+	}
+}
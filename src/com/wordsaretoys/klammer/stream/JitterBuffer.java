@@ -0,0 +1,366 @@
+package com.wordsaretoys.klammer.stream;
+
+/**
+ * adaptive playout buffer for decoded audio frames
+ *
+ * frames are slotted by capture timestamp, so they play in
+ * order no matter how they arrive. the playout delay follows
+ * the measured interarrival jitter: it grows by repeating a
+ * frame when the buffer runs shallow, and shrinks by skipping
+ * a frame when the buffer has stayed deeper than needed for
+ * a while. missing frames are concealed by fading out the
+ * last good one; frames repeated to add delay aren't faded.
+ * a gap found while the buffer is deeper than it needs to
+ * be, as when frames come again after a burst loss has run
+ * it dry, is skipped down to the target delay at once rather
+ * than concealed frame by frame and everything after it 
+ * played that much late.
+ *
+ * put() is called on the receiving thread, pull() on the
+ * playback thread.
+ */
+public class JitterBuffer {
+
+	// number of frame slots, a power of two
+	static final int Capacity = 32;
+
+	// playout delay bounds in frames
+	static int MinDelay = 2;
+	static int MaxDelay = Capacity / 2;
+
+	// target delay is this many jitter estimates above one frame
+	static float JitterFactor = 3f;
+
+	// frames the buffer must stay too deep before it shrinks
+	static int ShrinkHold = 25;
+
+	// least playout delay in frames, allowing for bursts
+	int minDelay = MinDelay;
+
+	// samples per frame and frame duration in ms
+	int frameSize;
+	int frameTime;
+
+	// decoded frames, and the frame index held by each slot
+	short[][] slot;
+	int[] index;
+	boolean[] full;
+
+	// last frame played, for concealment
+	short[] last;
+
+	// timestamp that frame index 0 corresponds to
+	int baseTime;
+	boolean started;
+
+	// true once enough frames have arrived to begin playout
+	boolean playing;
+
+	// index of the next frame to play, highest frame index held
+	int playIndex, maxIndex;
+
+	// interarrival jitter estimate in ms, and last transit time
+	float jitter;
+	int transit;
+
+	// consecutive pulls with more delay than the target
+	int excess;
+
+	// concealment gain, halved for each consecutive lost frame
+	int fade;
+
+	// counters
+	int late, discarded, concealed, stretched, shrunk;
+
+	/**
+	 * ctor
+	 * @param frameSize samples per frame
+	 * @param sampleRate samples per second
+	 */
+	public JitterBuffer(int frameSize, int sampleRate) {
+		this.frameSize = frameSize;
+		frameTime = frameSize * 1000 / sampleRate;
+		slot = new short[Capacity][frameSize];
+		index = new int[Capacity];
+		full = new boolean[Capacity];
+		last = new short[frameSize];
+	}
+
+	/**
+	 * forget all frames and start over
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < Capacity; i++) {
+			full[i] = false;
+		}
+		started = false;
+		playing = false;
+		jitter = 0;
+	}
+
+	/**
+	 * add a decoded frame
+	 * @param timestamp capture timestamp of the frame in ms
+	 * @param pcm decoded samples
+	 * @param now local arrival time in ms
+	 */
+	public synchronized void put(int timestamp, short[] pcm, int now) {
+		if (!started) {
+			started = true;
+			baseTime = timestamp;
+			playIndex = maxIndex = 0;
+			transit = now - timestamp;
+		}
+
+		// update the jitter estimate, as in RFC 3550
+		int t = now - timestamp;
+		int d = t - transit;
+		transit = t;
+		jitter += ((d < 0 ? -d : d) - jitter) / 16f;
+
+		place(timestamp, pcm);
+	}
+
+	/**
+	 * add a decoded frame that arrived along with an earlier
+	 * one, so it doesn't count towards the jitter estimate
+	 * @param timestamp capture timestamp of the frame in ms
+	 * @param pcm decoded samples
+	 */
+	public synchronized void put(int timestamp, short[] pcm) {
+		if (!started) {
+			return;
+		}
+		place(timestamp, pcm);
+	}
+
+	/**
+	 * set the number of frames that arrive together, e.g. 
+	 * bundled in one packet. the playout delay is kept at
+	 * least one frame above this, or every burst would run
+	 * the buffer dry before the next arrives.
+	 * @param frames frames per burst
+	 */
+	public synchronized void setBurst(int frames) {
+		minDelay = Math.min(Math.max(frames + 1, MinDelay), MaxDelay);
+	}
+
+	/**
+	 * slot a frame by its timestamp
+	 */
+	void place(int timestamp, short[] pcm) {
+		int dt = timestamp - baseTime;
+		if (dt < 0) {
+			// older than the first frame we saw
+			late++;
+			return;
+		}
+		int n = dt / frameTime;
+		if (playing && n < playIndex) {
+			late++;
+			return;
+		}
+		if (n - playIndex >= Capacity) {
+			// far ahead of playout; the sender has skipped
+			// forward or we've fallen hopelessly behind
+			if (n - maxIndex > Capacity) {
+				resync(timestamp);
+				n = 0;
+			} else {
+				discarded++;
+				return;
+			}
+		}
+
+		int i = n & (Capacity - 1);
+		if (full[i] && index[i] == n) {
+			discarded++;
+			return;
+		}
+		System.arraycopy(pcm, 0, slot[i], 0, frameSize);
+		index[i] = n;
+		full[i] = true;
+		if (n > maxIndex) {
+			maxIndex = n;
+		}
+	}
+
+	/**
+	 * take the next frame for playback
+	 * @param pcm destination for frameSize samples
+	 */
+	public synchronized void pull(short[] pcm) {
+		int target = getTargetDelay();
+		int depth = getDepth();
+
+		if (!playing) {
+			if (!started || depth < target) {
+				silence(pcm);
+				return;
+			}
+			playing = true;
+			// start playing from the oldest frame we hold
+			while (!isHeld(playIndex) && playIndex < maxIndex) {
+				playIndex++;
+			}
+		}
+
+		if (depth == 0) {
+			// nothing to play: hold position and let it refill
+			conceal(pcm);
+			concealed++;
+			return;
+		}
+
+		if (!isHeld(playIndex) && depth > target + 1) {
+			// too deep, with a gap at the front: skip it
+			while (!isHeld(playIndex) && depth > target) {
+				playIndex++;
+				depth--;
+				shrunk++;
+			}
+		}
+
+		if (depth < target && isHeld(playIndex)) {
+			// too shallow: repeat the last frame to add delay;
+			// nothing's lost, so it plays at full volume
+			repeat(pcm);
+			stretched++;
+			return;
+		}
+
+		excess = depth > target + 1 ? excess + 1 : 0;
+		if (excess > ShrinkHold) {
+			// deeper than needed for a while: skip a frame
+			excess = 0;
+			drop(playIndex++);
+			shrunk++;
+		}
+
+		int i = playIndex & (Capacity - 1);
+		if (isHeld(playIndex)) {
+			System.arraycopy(slot[i], 0, pcm, 0, frameSize);
+			System.arraycopy(pcm, 0, last, 0, frameSize);
+			full[i] = false;
+			fade = 0;
+		} else {
+			conceal(pcm);
+			concealed++;
+		}
+		playIndex++;
+	}
+
+	/**
+	 * @return frames between the playout position and the newest frame
+	 */
+	public synchronized int getDepth() {
+		return started ? Math.max(0, maxIndex - playIndex + 1) : 0;
+	}
+
+	/**
+	 * @return playout delay the buffer is aiming for, in frames
+	 */
+	public synchronized int getTargetDelay() {
+		int target = 1 + (int) Math.ceil(JitterFactor * jitter / frameTime);
+		return Math.min(Math.max(target, minDelay), MaxDelay);
+	}
+
+	/**
+	 * @return interarrival jitter estimate in ms
+	 */
+	public synchronized float getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @return number of frames that arrived after their playout time
+	 */
+	public int getLate() {
+		return late;
+	}
+
+	/**
+	 * @return number of frames thrown away as duplicate or overflow
+	 */
+	public int getDiscarded() {
+		return discarded;
+	}
+
+	/**
+	 * @return number of frames concealed for being missing
+	 */
+	public int getConcealed() {
+		return concealed;
+	}
+
+	/**
+	 * @return number of frames repeated to grow the delay
+	 */
+	public int getStretched() {
+		return stretched;
+	}
+
+	/**
+	 * @return number of frames skipped to shrink the delay,
+	 * singly or across a gap
+	 */
+	public int getShrunk() {
+		return shrunk;
+	}
+
+	/**
+	 * @return true if the frame with index n is held
+	 */
+	boolean isHeld(int n) {
+		int i = n & (Capacity - 1);
+		return full[i] && index[i] == n;
+	}
+
+	/**
+	 * discard a frame if held
+	 */
+	void drop(int n) {
+		if (isHeld(n)) {
+			full[n & (Capacity - 1)] = false;
+		}
+	}
+
+	/**
+	 * start over from a new timestamp
+	 */
+	void resync(int timestamp) {
+		for (int i = 0; i < Capacity; i++) {
+			full[i] = false;
+		}
+		baseTime = timestamp;
+		playIndex = maxIndex = 0;
+		playing = false;
+	}
+
+	/**
+	 * fill a frame with the last good frame, faded out
+	 */
+	void conceal(short[] pcm) {
+		fade++;
+		int shift = Math.min(fade, 15);
+		for (int i = 0; i < frameSize; i++) {
+			pcm[i] = (short)(last[i] >> shift);
+		}
+	}
+
+	/**
+	 * fill a frame with the last good frame as it was
+	 */
+	void repeat(short[] pcm) {
+		System.arraycopy(last, 0, pcm, 0, frameSize);
+	}
+
+	/**
+	 * fill a frame with silence
+	 */
+	void silence(short[] pcm) {
+		for (int i = 0; i < frameSize; i++) {
+			pcm[i] = 0;
+		}
+	}
+}
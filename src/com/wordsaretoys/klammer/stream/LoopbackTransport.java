@@ -0,0 +1,133 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * in-memory transport connecting two endpoints in one process
+ * 
+ * whatever one end sends, the other receives, whatever the
+ * target address. each end's inbox is bounded like a socket
+ * receive buffer, and drops datagrams when full. datagrams
+ * are copied into buffers leased from the shared pool.
+ */
+public class LoopbackTransport implements Transport {
+
+	// datagrams each inbox may hold
+	static int Capacity = 256;
+	
+	// marks an inbox as closed
+	static final BufferPool.Buffer Closed = new BufferPool.Buffer(null, 0, -1);
+	
+	// this end's address, as seen by the other end
+	InetSocketAddress address;
+	
+	// copies of datagrams waiting for this end, all from the other end
+	BlockingQueue<BufferPool.Buffer> inbox;
+	
+	// pool the copies are leased from
+	BufferPool pool = BufferPool.getShared();
+	
+	// the other end
+	LoopbackTransport peer;
+	
+	// true once closed
+	volatile boolean closed;
+	
+	// datagrams dropped on a full inbox
+	volatile int dropped;
+	
+	/**
+	 * create a connected pair of endpoints
+	 * @return array of two transports
+	 */
+	public static LoopbackTransport[] createPair() {
+		LoopbackTransport a = new LoopbackTransport(
+				new InetSocketAddress("127.0.0.1", 1));
+		LoopbackTransport b = new LoopbackTransport(
+				new InetSocketAddress("127.0.0.1", 2));
+		a.peer = b;
+		b.peer = a;
+		return new LoopbackTransport[] { a, b };
+	}
+	
+	/**
+	 * ctor
+	 * @param address address of this end
+	 */
+	LoopbackTransport(InetSocketAddress address) {
+		this.address = address;
+		inbox = new ArrayBlockingQueue<BufferPool.Buffer>(Capacity);
+	}
+	
+	@Override
+	public InetSocketAddress receive(ByteBuffer dst) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		BufferPool.Buffer b;
+		try {
+			b = inbox.take();
+		} catch (InterruptedException e) {
+			throw new ClosedChannelException();
+		}
+		if (b == Closed) {
+			// leave the marker for any later caller
+			inbox.offer(Closed);
+			throw new ClosedChannelException();
+		}
+		// truncate as a datagram socket would
+		if (b.data.remaining() > dst.remaining()) {
+			b.data.limit(b.data.position() + dst.remaining());
+		}
+		dst.put(b.data);
+		b.release();
+		return peer.address;
+	}
+
+	@Override
+	public void send(ByteBuffer src, InetSocketAddress target) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		BufferPool.Buffer copy = pool.lease(src.remaining());
+		copy.data.put(src);
+		copy.data.flip();
+		if (peer.closed || !peer.inbox.offer(copy)) {
+			if (!peer.closed) {
+				dropped++;
+			}
+			copy.release();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			BufferPool.Buffer b;
+			while ((b = inbox.poll()) != null) {
+				b.release();
+			}
+			inbox.offer(Closed);
+		}
+	}
+	
+	/**
+	 * @return address of this end
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+	
+	/**
+	 * @return number of datagrams dropped on a full inbox
+	 */
+	public int getDropped() {
+		return dropped;
+	}
+}
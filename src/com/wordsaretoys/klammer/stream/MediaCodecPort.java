@@ -0,0 +1,105 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+
+import com.wordsaretoys.klammer.util.Logg;
+
+/**
+ * codec port onto a MediaCodec
+ *
+ * MediaCodec's dequeue results and buffer flags have the
+ * same values as CodecPort's, so they pass straight through.
+ */
+public class MediaCodecPort extends CodecPort {
+
+	static String TAG = "MediaCodecPort";
+
+	// the codec
+	MediaCodec codec;
+
+	// name of the codec, for the log
+	String name;
+
+	// output buffer description, reused for every output
+	BufferInfo info = new BufferInfo();
+
+	/**
+	 * ctor
+	 * @param name name of the codec, for the log
+	 * @param codec configured codec
+	 */
+	public MediaCodecPort(String name, MediaCodec codec) {
+		this.name = name;
+		this.codec = codec;
+	}
+
+	/**
+	 * start the codec and fetch its buffers
+	 */
+	public void start() {
+		codec.start();
+		fetchBuffers();
+	}
+
+	/**
+	 * stop and release the codec
+	 */
+	public void release() {
+		try {
+			codec.stop();
+			codec.release();
+		} catch (IllegalStateException e) {}
+	}
+
+	/**
+	 * @return the codec
+	 */
+	public MediaCodec getCodec() {
+		return codec;
+	}
+
+	@Override
+	protected void onOutputFormatChanged() {
+		Logg.d(TAG, name + " format changed: " + codec.getOutputFormat());
+	}
+
+	@Override
+	protected ByteBuffer[] getInputBuffers() {
+		return codec.getInputBuffers();
+	}
+
+	@Override
+	protected ByteBuffer[] getOutputBuffers() {
+		return codec.getOutputBuffers();
+	}
+
+	@Override
+	protected int dequeueInputBuffer(long timeoutUs) {
+		return codec.dequeueInputBuffer(timeoutUs);
+	}
+
+	@Override
+	protected void queueInputBuffer(int index, int offset, int size, long timeUs, int flags) {
+		codec.queueInputBuffer(index, offset, size, timeUs, flags);
+	}
+
+	@Override
+	protected int dequeueOutputBuffer(long timeoutUs) {
+		int index = codec.dequeueOutputBuffer(info, timeoutUs);
+		if (index >= 0) {
+			offset = info.offset;
+			size = info.size;
+			flags = info.flags;
+			presentationTimeUs = info.presentationTimeUs;
+		}
+		return index;
+	}
+
+	@Override
+	protected void releaseOutputBuffer(int index, boolean render) {
+		codec.releaseOutputBuffer(index, render);
+	}
+}
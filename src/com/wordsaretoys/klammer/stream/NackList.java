@@ -0,0 +1,189 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * tracks video packets the receiver is missing and builds
+ * negative acknowledgements asking the sender for them
+ *
+ * a missing packet is requested as soon as its gap is seen,
+ * then again every RetryInterval ms up to MaxTries times,
+ * and forgotten once it arrives or can no longer make the
+ * reassembly deadline. requests are encoded like RTCP
+ * generic NACKs, a base sequence number plus a bitmask of
+ * the 16 that follow it. not thread safe; the network uses
+ * it from its reader and monitor threads under a lock.
+ */
+public class NackList {
+
+	// most packets tracked at once
+	static final int Capacity = 64;
+
+	// time between requests for the same packet in ms
+	static int RetryInterval = 40;
+
+	// most requests for the same packet
+	static int MaxTries = 3;
+
+	// missing sequence numbers, oldest first
+	int[] sequence = new int[Capacity];
+
+	// time each packet was first found missing and last requested
+	int[] found = new int[Capacity];
+	int[] asked = new int[Capacity];
+
+	// number of requests made for each packet
+	int[] tries = new int[Capacity];
+
+	// number of packets tracked
+	int count;
+
+	// counters
+	int requested, recovered, givenUp;
+
+	/**
+	 * forget all missing packets
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * note a gap in the sequence
+	 * @param first first missing sequence number
+	 * @param n number of missing packets
+	 * @param now local time in ms
+	 */
+	public void add(int first, int n, int now) {
+		// if the gap is huge, only the newest packets are worth asking for
+		if (n > Capacity) {
+			first = (first + n - Capacity) & 0xffff;
+			n = Capacity;
+		}
+		// make room by dropping the oldest entries
+		int excess = count + n - Capacity;
+		if (excess > 0) {
+			remove(0, excess);
+			givenUp += excess;
+		}
+		for (int i = 0; i < n; i++) {
+			sequence[count] = (first + i) & 0xffff;
+			found[count] = now;
+			asked[count] = 0;
+			tries[count] = 0;
+			count++;
+		}
+	}
+
+	/**
+	 * note the arrival of an out of order packet
+	 * @param seq sequence number
+	 */
+	public void arrived(int seq) {
+		for (int i = 0; i < count; i++) {
+			if (sequence[i] == seq) {
+				if (tries[i] > 0) {
+					recovered++;
+				}
+				remove(i, 1);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param now local time in ms
+	 * @return true if any packet is due a request
+	 */
+	public boolean isDue(int now) {
+		for (int i = 0; i < count; i++) {
+			if (tries[i] == 0 || now - asked[i] >= RetryInterval) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * write a request for every packet that is due one
+	 * @param b destination buffer
+	 * @param offset offset to write at
+	 * @param now local time in ms
+	 * @return number of bytes written, 0 if nothing is due
+	 */
+	public int build(ByteBuffer b, int offset, int now) {
+		// drop packets that can't arrive in time anymore
+		int i = 0;
+		while (i < count) {
+			if (tries[i] >= MaxTries || now - found[i] > Reassembler.Deadline) {
+				remove(i, 1);
+				givenUp++;
+			} else {
+				i++;
+			}
+		}
+
+		int p = offset;
+		int base = -1;
+		for (i = 0; i < count; i++) {
+			if (tries[i] > 0 && now - asked[i] < RetryInterval) {
+				continue;
+			}
+			asked[i] = now;
+			tries[i]++;
+			requested++;
+			int d = (sequence[i] - base) & 0xffff;
+			if (base >= 0 && d >= 1 && d <= 16) {
+				// fits in the current entry's bitmask
+				int mask = b.getShort(p - 2) | (1 << (d - 1));
+				b.putShort(p - 2, (short) mask);
+			} else {
+				base = sequence[i];
+				b.putShort(p, (short) base);
+				b.putShort(p + 2, (short) 0);
+				p += 4;
+			}
+		}
+		return p - offset;
+	}
+
+	/**
+	 * @return number of packets being tracked
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return number of requests made
+	 */
+	public int getRequested() {
+		return requested;
+	}
+
+	/**
+	 * @return number of requested packets that arrived
+	 */
+	public int getRecovered() {
+		return recovered;
+	}
+
+	/**
+	 * @return number of missing packets given up on
+	 */
+	public int getGivenUp() {
+		return givenUp;
+	}
+
+	/**
+	 * close up the arrays over removed entries
+	 */
+	void remove(int at, int n) {
+		int m = count - at - n;
+		System.arraycopy(sequence, at + n, sequence, at, m);
+		System.arraycopy(found, at + n, found, at, m);
+		System.arraycopy(asked, at + n, asked, at, m);
+		System.arraycopy(tries, at + n, tries, at, m);
+		count -= n;
+	}
+}
@@ -1,19 +1,101 @@
 package com.wordsaretoys.klammer.stream;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
-import com.wordsaretoys.klammer.util.Logg;
 import com.wordsaretoys.klammer.util.Needle;
 
 /**
  * manages the wifi socket and the read/write threads
+ * 
+ * the socket is normally a blocking datagram channel, but
+ * any transport may be supplied instead. all packet buffers
+ * are direct, so the channel moves data to and from them
+ * without going through an intermediate native copy.
+ * 
+ * in a group with several clients, the group owner relays
+ * each client's media to the others, and sends its own to
+ * all of them. everyone plays one source at a time, and
+ * moves on to another when that one goes quiet. control 
+ * messages about a particular stream carry the source id 
+ * they're meant for, so the owner can pass them on to it,
+ * and everyone else can ignore them.
+ * 
+ * the reader never decodes; it hands received media off
+ * to a decoder thread per type through a bounded queue.
+ * 
+ * the clock, the log and the media sink are supplied, so the
+ * network runs off the device too, e.g. over a loopback or
+ * impaired transport on a desktop JVM.
  */
 public class Network {
 
+	/**
+	 * source of the media clock
+	 */
+	public interface Clock {
+		/**
+		 * @return current time in ms, never going backwards
+		 */
+		public long getTime();
+	}
+	
+	/**
+	 * destination for log messages
+	 */
+	public interface Logger {
+		/**
+		 * log a debug message
+		 */
+		public void d(String tag, String msg);
+	}
+	
+	/**
+	 * destination for received media
+	 * 
+	 * everything but onSourceChanged() is called on a media
+	 * decoder thread, audio and video on separate ones.
+	 */
+	public interface Sink {
+		/**
+		 * decode a packet of audio
+		 * @param data packet payload, from position to limit
+		 * @param timestamp capture time from the packet header
+		 * @param arrival local arrival time
+		 */
+		public void onAudio(ByteBuffer data, int timestamp, int arrival);
+		
+		/**
+		 * decode a video frame
+		 * @param data frame data, from position to limit
+		 * @return false if it couldn't be decoded for want of
+		 * codec config, which is then asked for
+		 */
+		public boolean onVideo(ByteBuffer data);
+		
+		/**
+		 * take new video codec config
+		 * @param data config data, from position to limit
+		 */
+		public void onVideoConfig(ByteBuffer data);
+		
+		/**
+		 * no video has arrived for a while; pick up anything
+		 * left in the decoder
+		 */
+		public void onVideoIdle();
+		
+		/**
+		 * a different source is being played, so forget any
+		 * state kept about the last one; called on the reader
+		 */
+		public void onSourceChanged();
+	}
+
 	static String TAG = "Network";
 	
 	// IP port
@@ -22,14 +104,109 @@ public class Network {
 	// read and write buffer length
 	static int BufferSize = 65000;
 	
-	// streaming parent object
-	Streamer streamer;
+	// largest datagram we send, kept under the wifi MTU
+	// so packets never need IP fragmentation
+	static final int PacketSize = 1400;
+	
+	// packet types
+	static final int VideoPacket = 0;
+	static final int AudioPacket = 1;
+	static final int ControlPacket = 2;
+	static final int TypeCount = 3;
+	
+	// control message types, first byte of a control packet
+	static final int NackMessage = 1;
+	static final int ReportMessage = 2;
+	static final int ConfigMessage = 3;
+	static final int ConfigRequestMessage = 4;
+	static final int PingMessage = 5;
+	static final int PongMessage = 6;
+	
+	// time between receiver reports in ms
+	static int ReportInterval = 500;
+	
+	// round trip time assumed until we measure one, in ms
+	static int DefaultRtt = 20;
 	
-	// datagram socket
-	DatagramSocket socket;
+	// least time between requests for codec config, in ms
+	static int ConfigRequestInterval = 250;
+	
+	// time between keepalive pings, and the default time 
+	// without hearing from the peer before it's given up, in ms
+	static int PingInterval = 250;
+	static int PeerTimeout = 1000;
+	
+	// time the source being played may go quiet before
+	// we switch to another, in ms
+	static int SourceTimeout = 1000;
+	
+	// entries in the video and audio decode queues
+	static int VideoQueueSize = 4;
+	static int AudioQueueSize = 32;
+	
+	// kinds of video decode queue entry
+	static final int FrameEntry = 0;
+	static final int ConfigEntry = 1;
+	
+	// media clock, log, and where received media goes
+	Clock clock;
+	Logger logger;
+	Sink sink;
+	
+	// datagram transport
+	Transport transport;
 
-	// destination socket address
-	InetSocketAddress sendToAddr;
+	// destination socket address; for the group owner, the
+	// first client heard from, as the clients are in peers
+	volatile InetSocketAddress sendToAddr;
+	
+	// clients of the group owner
+	PeerTable peers;
+	
+	// packets waiting on the writer thread, by priority
+	Scheduler scheduler;
+	
+	// spreads video out at the target rate
+	Pacer pacer;
+	
+	// our stream source id
+	int source;
+	
+	// next outgoing sequence number, per packet type
+	AtomicIntegerArray sequence;
+	
+	// incoming stream statistics, per packet type
+	ReceiveStats[] stats;
+	
+	// splits outgoing video frames into fragments
+	Packetizer packetizer;
+	
+	// rebuilds incoming video frames from fragments
+	Reassembler reassembler;
+	
+	// recently sent video packets, for resending
+	History history;
+	
+	// incoming video packets we're missing
+	NackList nackList;
+	
+	// round trip time estimate in ms
+	volatile int rtt = DefaultRtt;
+	boolean rttSampled;
+	
+	// builds receiver reports on the incoming video
+	Report report;
+	
+	// guards the incoming stream statistics, the missing
+	// packet list and the report, which the reader thread 
+	// updates and the monitor thread sends feedback from
+	final Object feedbackLock = new Object();
+	
+	// our video codec config, for peers asking for it
+	BufferPool.Buffer videoConfig;
+	
+	// picks video rates from the peer's reports
+	RateController rateController;
 	
 	// stream reader thread
 	Reader reader;
@@ -37,29 +214,98 @@ public class Network {
 	// stream writer thread
 	Writer writer;
 	
+	// keepalive and liveness thread
+	Monitor monitor;
+	
+	// received media waiting to be decoded
+	DecodeQueue videoQueue;
+	DecodeQueue audioQueue;
+	
+	// media decoder threads
+	Decoder videoDecoder;
+	Decoder audioDecoder;
+	
 	// true if device is owner
 	boolean isOwner;
 	
 	// true if network is fully set up
-	boolean isReady;
+	volatile boolean isReady;
+	
+	// true while the peer is being heard from
+	AtomicBoolean peerAlive = new AtomicBoolean();
+	
+	// time we last heard from the peer
+	volatile int lastHeard;
+	
+	// time without hearing from the peer before it's given up
+	volatile int peerTimeout = PeerTimeout;
 	
 	/**
 	 * ctor
-	 * @param streamer parent object
-	 */
-	public Network(Streamer streamer) {
-		this.streamer = streamer;
-		
-		try {
-			socket = new DatagramSocket(Port);
-			socket.setReceiveBufferSize(BufferSize);
-			socket.setSendBufferSize(BufferSize);
-		} catch (SocketException e) {
-			Logg.d(TAG, "Socket exception while creating datagram socket, terminating");
-			e.printStackTrace();
-			onTermination();
-			return;
+	 * @param transport datagram transport, or null to open a
+	 * UDP datagram channel
+	 * @param clock media clock
+	 * @param logger log message destination
+	 * @param sink received media destination
+	 */
+	public Network(Transport transport, Clock clock, Logger logger, Sink sink) {
+		this.clock = clock;
+		this.logger = logger;
+		this.sink = sink;
+		
+		if (transport == null) {
+			try {
+				transport = new ChannelTransport(Port, BufferSize);
+			} catch (IOException e) {
+				logger.d(TAG, "IO exception while creating datagram channel, terminating");
+				e.printStackTrace();
+				onTermination();
+				return;
+			}
 		}
+		this.transport = transport;
+		
+		scheduler = new Scheduler(PacketSize);
+		peers = new PeerTable(PacketSize);
+		source = new Random().nextInt();
+		sequence = new AtomicIntegerArray(TypeCount);
+		stats = new ReceiveStats[TypeCount];
+		for (int i = 0; i < TypeCount; i++) {
+			stats[i] = new ReceiveStats();
+		}
+		packetizer = new Packetizer(this);
+		reassembler = new Reassembler() {
+			@Override
+			protected void onFrame(ByteBuffer data, int timestamp) {
+				videoQueue.put(data, timestamp, getClock(), FrameEntry);
+			}
+		};
+		history = new History(PacketSize);
+		nackList = new NackList();
+		report = new Report();
+		rateController = new RateController(
+				Codecs.VideoBitRate, Codecs.VideoFrameRate);
+		pacer = new Pacer(Codecs.VideoBitRate);
+		
+		videoQueue = new DecodeQueue(VideoQueueSize, 
+				Packetizer.FragmentSize * Packetizer.MaxFragments, 
+				DecodeQueue.DropOldest) {
+			@Override
+			protected boolean isDroppable(Entry e) {
+				// the decoder can't do without its config
+				return e.kind != ConfigEntry;
+			}
+		};
+		audioQueue = new DecodeQueue(AudioQueueSize, PacketSize, 
+				DecodeQueue.Wait);
+		
+		videoDecoder = new Decoder("video-decoder", videoQueue, VideoPacket);
+		videoDecoder.start();
+		videoDecoder.resume();
+		
+		audioDecoder = new Decoder("audio-decoder", audioQueue, AudioPacket);
+		audioDecoder.start();
+		audioDecoder.resume();
 		
 		reader = new Reader();
 		reader.start();
@@ -67,6 +313,10 @@ public class Network {
 		
 		writer = new Writer();
 		writer.start();
+		
+		monitor = new Monitor();
+		monitor.start();
+		monitor.resume();
 	}
 	
 	/**
@@ -80,22 +330,16 @@ public class Network {
 	 */
 	public void connect(String host, boolean owner) {
 		isOwner = owner;
-		Logg.d(TAG, (owner ? "acting as SERVER" : "acting as CLIENT"));
-		
-		try {
-			// if I'm the "server", I have to wait for a packet from the
-			// "client" to know who to send to; if I'm the "client", I'm
-			// sending to the "server" address (i.e., the group owner).
-			writer.packet = isOwner ? null : new DatagramPacket(
-					new byte[BufferSize], 
-					BufferSize, 
-					new InetSocketAddress(host, Port));
-		} catch (SocketException e) {
-			Logg.d(TAG, "Socket exception while initiating connection, terminating");
-			e.printStackTrace();
-			onTermination();
-			return;
-		}
+		logger.d(TAG, (owner ? "acting as SERVER" : "acting as CLIENT"));
+		
+		// if I'm the "server", I have to wait for a packet from the
+		// "client" to know who to send to; if I'm the "client", I'm
+		// sending to the "server" address (i.e., the group owner).
+		sendToAddr = isOwner ? null : new InetSocketAddress(host, Port);
+		
+		// assume the peer is there until it fails to show
+		lastHeard = getClock();
+		peerAlive.set(true);
 		
 		// signal that we're ready to go
 		isReady = true;
@@ -110,12 +354,24 @@ public class Network {
 	}
 	
 	/**
-	 * close datagram socket
+	 * close datagram transport and stop the threads
 	 * ONLY call if app is finishing!
 	 */
 	public void close() {
-		if (socket != null) {
-			socket.close();
+		isReady = false;
+		if (reader != null) {
+			reader.stop();
+			writer.stop();
+			monitor.stop();
+			videoDecoder.stop();
+			audioDecoder.stop();
+		}
+		if (transport != null) {
+			try {
+				transport.close();
+			} catch (IOException e) {
+				logger.d(TAG, "IO exception while closing datagram transport");
+			}
 		}
 	}
 
@@ -127,34 +383,261 @@ public class Network {
 		return isReady;
 	}
 
+	/**
+	 * get streaming state of network
+	 * @return true if network is ready and the peer is 
+	 * alive, i.e. media sent is likely to arrive
+	 */
+	public boolean isStreaming() {
+		return isReady && peerAlive.get();
+	}
+	
+	/**
+	 * set how long the peer may go unheard before we
+	 * give it up for lost and stop sending media
+	 * @param ms timeout in ms
+	 */
+	public void setPeerTimeout(int ms) {
+		peerTimeout = ms;
+	}
+	
+	/**
+	 * get the round trip time to the peer
+	 * @return smoothed round trip time in ms
+	 */
+	public int getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * get the group owner's table of clients
+	 * @return peer table object
+	 */
+	public PeerTable getPeers() {
+		return peers;
+	}
+	
+	/**
+	 * get the source being played
+	 * @return stream source id
+	 */
+	public int getActiveSource() {
+		return reader.activeSource;
+	}
+	
+	/**
+	 * get the queue of received video waiting to be decoded
+	 * @return decode queue object
+	 */
+	public DecodeQueue getVideoQueue() {
+		return videoQueue;
+	}
+	
+	/**
+	 * get the queue of received audio waiting to be decoded
+	 * @return decode queue object
+	 */
+	public DecodeQueue getAudioQueue() {
+		return audioQueue;
+	}
+	
+	/**
+	 * get the scheduler feeding the writer thread
+	 * @return scheduler object
+	 */
+	public Scheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * get statistics for an incoming stream
+	 * @param type packet type
+	 * @return receive statistics object
+	 */
+	public ReceiveStats getStats(int type) {
+		return stats[type];
+	}
+	
+	/**
+	 * set the video forward error correction overhead
+	 * @param groupSize fragments per parity packet, or 0 for none
+	 */
+	public void setParityGroupSize(int groupSize) {
+		packetizer.setGroupSize(groupSize);
+	}
+	
+	/**
+	 * get the sender-side video packet history
+	 * @return history object
+	 */
+	public History getHistory() {
+		return history;
+	}
+	
+	/**
+	 * get the receiver-side list of missing video packets
+	 * @return nack list object
+	 */
+	public NackList getNackList() {
+		return nackList;
+	}
+	
+	/**
+	 * get the video send pacer
+	 * @return pacer object
+	 */
+	public Pacer getPacer() {
+		return pacer;
+	}
+	
+	/**
+	 * get the video rate controller
+	 * @return rate controller object
+	 */
+	public RateController getRateController() {
+		return rateController;
+	}
+	
+	/**
+	 * get the media clock used for packet timestamps
+	 * @return current time in ms (wraps)
+	 */
+	public int getClock() {
+		return (int) getTime();
+	}
+	
+	/**
+	 * get the media clock without wrapping, for timing that
+	 * outlives the packet, e.g. a trip through a codec
+	 * @return current time in ms
+	 */
+	public long getTime() {
+		return clock.getTime();
+	}
 	
 	/**
 	 * send a frame of video data
+	 * @param timestamp capture time from getTime(); it's cut
+	 * down to the 32 bit wire timestamp in the packet header
+	 * @return false if the frame was too large to send
+	 */
+	public boolean sendVideoFrame(byte[] data, int length, long timestamp) {
+		if (length > 0 && sendToAddr != null) {
+			if (!packetizer.send(data, length, timestamp)) {
+				logger.d(TAG, "video frame too large to send (" + length + ")");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * get the video packetizer
+	 * @return packetizer object
+	 */
+	public Packetizer getPacketizer() {
+		return packetizer;
+	}
+
+	/**
+	 * send the video codec config data out of band
+	 * it's also kept, to resend when the peer asks for it
+	 * @param config config data from the encoder, from position
+	 * to limit, or null to resend the config last kept
 	 */
-	public synchronized void sendVideoFrame(byte[] data, int length) {
-		submitPacket((byte)0, data, length);
+	public synchronized void sendVideoConfig(BufferPool.Buffer config) {
+		if (config != null && config != videoConfig) {
+			if (1 + config.data.remaining() + Header.Size > PacketSize) {
+				return;
+			}
+			config.retain();
+			if (videoConfig != null) {
+				videoConfig.release();
+			}
+			videoConfig = config;
+		}
+		if (videoConfig == null || sendToAddr == null) {
+			return;
+		}
+		SendQueue.Slot slot = claimPacket(ControlPacket, 0, getClock());
+		if (slot != null) {
+			ByteBuffer b = videoConfig.data;
+			int p = Header.Size;
+			slot.data.put(p, (byte) ConfigMessage);
+			slot.data.position(p + 1);
+			slot.data.put(b.array(), b.position(), b.remaining());
+			publishPacket(slot, p + 1 + b.remaining());
+		}
 	}
 
 	/**
 	 * send a frame of audio data
+	 * @param timestamp capture time from getClock()
 	 */
-	public synchronized void sendAudioFrame(byte[] data, int length) {
-		submitPacket((byte)1, data, length);
+	public void sendAudioFrame(byte[] data, int length, int timestamp) {
+		submitPacket(AudioPacket, timestamp, data, length);
 	}
 
 	/**
-	 * send a frame of video data
+	 * queue a packet for the writer thread
+	 * safe to call from any thread; drops the packet if queue is full
+	 */
+	private void submitPacket(int type, int timestamp, byte[] frame, int length) {
+		if (length > 0 && length + Header.Size <= PacketSize && sendToAddr != null) {
+			SendQueue.Slot slot = claimPacket(type, 0, timestamp);
+			if (slot != null) {
+				slot.data.position(Header.Size);
+				slot.data.put(frame, 0, length);
+				publishPacket(slot, length + Header.Size);
+			}
+		}
+	}
+	
+	/**
+	 * claim a send queue slot and write the packet header into it
+	 * the caller fills in the payload and calls publishPacket()
+	 * @return slot, or null if the send queue is full
+	 */
+	SendQueue.Slot claimPacket(int type, int flags, long timestamp) {
+		// sequence numbers are consumed even if the queue is
+		// full, so the receiver can see the drop as a loss
+		int seq = sequence.getAndIncrement(type) & 0xffff;
+		SendQueue.Slot slot = scheduler.claim(classOf(type), type);
+		if (slot != null) {
+			Header.write(slot.data, type, flags, seq, timestamp, source);
+		}
+		return slot;
+	}
+	
+	/**
+	 * hand a filled slot to the writer thread
+	 * @param length total packet length including header
+	 */
+	void publishPacket(SendQueue.Slot slot, int length) {
+		scheduler.publish(slot, length);
+		writer.resume();
+	}
+	
+	/**
+	 * @return true if a control message is about one stream,
+	 * and starts with the source id of the stream's sender
+	 */
+	static boolean isTargeted(int message) {
+		return message == NackMessage || message == ReportMessage ||
+				message == ConfigRequestMessage || message == PongMessage;
+	}
+	
+	/**
+	 * @return scheduler traffic class for fresh packets of a type
 	 */
-	private void submitPacket(byte type, byte[] frame, int length) {
-		if (length < BufferSize && writer.packet != null) {
-			byte[] pd = writer.packet.getData();
-			pd[0] = type;
-			System.arraycopy(frame, 0, pd, 1, length);
-			// TODO: note that synchronization ends
-			// once the writer thread has the packet
-			// video & audio could overwrite the other
-			writer.packet.setLength(length + 1);
-			writer.resume();
+	static int classOf(int type) {
+		switch (type) {
+		case ControlPacket:
+			return Scheduler.Control;
+		case AudioPacket:
+			return Scheduler.Audio;
+		default:
+			return Scheduler.Video;
 		}
 	}
 	
@@ -163,9 +646,28 @@ public class Network {
 	 */
 	class Reader extends Needle {
 
-		public DatagramPacket packet =
-				new DatagramPacket(new byte[BufferSize], BufferSize);
-		byte[] data = new byte[BufferSize];
+		// receive buffer, and views on it that are pointed 
+		// at the payload and the whole packet, so they can
+		// be passed on uncopied
+		ByteBuffer packet = ByteBuffer.allocateDirect(BufferSize);
+		ByteBuffer payload = packet.duplicate();
+		ByteBuffer whole = packet.duplicate();
+		Header header = new Header();
+		
+		// buffer for packets fetched from the history
+		ByteBuffer resend = ByteBuffer.allocateDirect(PacketSize);
+		
+		// source id of the stream we're playing, and when
+		// we last heard media from it
+		volatile int activeSource;
+		boolean hasActive;
+		int activeHeard;
+		
+		// time the last receiver report went out
+		int lastReport;
+		
+		// time we last asked the peer for codec config
+		int lastConfigRequest;
 
 		public Reader() {
 			super("packet-reader", 1);
@@ -176,54 +678,446 @@ public class Network {
 			
 			while (inPump()) {
 				
+				InetSocketAddress from;
+				packet.clear();
 				try {
-					socket.receive(packet);
+					from = transport.receive(packet);
 				} catch (IOException e) {
 					// might be thrown if we're receiving packets
 					// during Wifi Direct disconnection, so we'll
 					// just quietly eat it
+					continue;
 				}
-//				Logg.d(TAG, "received packet from " + readPacket.getAddress().getHostAddress());
+				int length = packet.position();
 				
 				// if we're not connected, just drop the packet
 				if (!isReady) {
 					continue;
 				}
 				
-				// if we don't have a write packet yet
-				if (writer.packet == null) {
-					// the first packet received tells us 
-					// who we should be sending to
-					String rip = packet.getAddress().getHostAddress();
-					try {
-						writer.packet = new DatagramPacket(
-								new byte[BufferSize], 
-								BufferSize, 
-								new InetSocketAddress(rip, Port));
-					} catch (SocketException e) {
-						Logg.d(TAG, "Socket exception while initiating connection, terminating");
-						e.printStackTrace();
-						onTermination();
-						return;
+				if (!header.read(packet, length)) {
+					logger.d(TAG, "received malformed packet");
+					continue;
+				}
+				if (header.type >= TypeCount) {
+					logger.d(TAG, "received unknown packet type (" + header.type + ")");
+					continue;
+				}
+				
+				int now = getClock();
+				int l = length - Header.Size;
+				int message = header.type == ControlPacket && l > 0 ? 
+						packet.get(Header.Size) : 0;
+				
+				if (isOwner) {
+					// keep track of clients, and pass on
+					// anything the others need to see
+					PeerTable.Peer peer = peers.find(from, header.source, now);
+					if (peer == null) {
+						continue;
+					}
+					if (sendToAddr == null) {
+						sendToAddr = from;
+					}
+					if (relay(peer, message, length)) {
+						writer.resume();
 					}
+				} else {
+					// everything comes from the group owner; if it 
+					// turns up somewhere else, say after a reconnect,
+					// follow it there
+					InetSocketAddress addr = sendToAddr;
+					if (addr == null || !addr.getAddress().equals(from.getAddress())) {
+						sendToAddr = new InetSocketAddress(from.getAddress(), Port);
+					}
+				}
+				
+				// the peer is alive, or back from the dead
+				lastHeard = now;
+				if (peerAlive.compareAndSet(false, true)) {
+					logger.d(TAG, "peer found");
+					onPeerFound();
 				}
 				
-				byte[] pd = packet.getData();
-				int l = packet.getLength() - 1;
-				System.arraycopy(pd, 1, data, 0, l);
-				switch (pd[0]) {
+				payload.clear();
+				payload.limit(length).position(Header.Size);
+				
+				if (header.type == ControlPacket) {
+					if (message == ConfigMessage && !isPlaying(header.source, now)) {
+						continue;
+					}
+					handleControl(packet, Header.Size, l, now);
+					continue;
+				}
+				
+				// drop media from anyone but the source we're playing
+				if (!isPlaying(header.source, now)) {
+					continue;
+				}
+				// resends count towards loss, but their transit
+				// time is no measure of the path
+				int status;
+				synchronized (feedbackLock) {
+					status = stats[header.type].update(
+							header.sequence, header.timestamp, now, l,
+							(header.flags & Header.FlagRetransmit) == 0);
+					if (header.type == VideoPacket) {
+						if (status == ReceiveStats.InOrder) {
+							int gap = stats[VideoPacket].getGap();
+							if (gap > 0) {
+								nackList.add(header.sequence - gap, gap, now);
+							}
+						} else if (status != ReceiveStats.Duplicate) {
+							nackList.arrived(header.sequence);
+						}
+					}
+				}
+				if (status == ReceiveStats.Duplicate) {
+					continue;
+				}
+				
+				switch (header.type) {
 
-				case 0:	// video frame
-					streamer.getVideo().handlePacket(data, l);
+				case VideoPacket:
+					reassembler.add(header.flags, header.timestamp, payload, Header.Size, l, now);
+					sendFeedback(now);
 					break;
 					
-				case 1: // audio frame
-					streamer.getAudio().handlePacket(data, l);
+				case AudioPacket:
+					audioQueue.put(payload, header.timestamp, now, 0);
 					break;
+				}
+			}
+		}
+		
+		/**
+		 * check a stream's source against the one we're playing,
+		 * switching to it if the one we're playing has gone quiet
+		 * (which is also how we notice the peer restarting)
+		 * @return true if the source is the one being played
+		 */
+		boolean isPlaying(int source, int now) {
+			if (!hasActive || source != activeSource) {
+				if (hasActive && now - activeHeard <= SourceTimeout) {
+					return false;
+				}
+				logger.d(TAG, "now playing source " + Integer.toHexString(source));
+				synchronized (feedbackLock) {
+					hasActive = true;
+					activeSource = source;
+					for (int i = 0; i < TypeCount; i++) {
+						stats[i].reset();
+					}
+					nackList.reset();
+					report.reset();
+				}
+				reassembler.reset();
+				videoQueue.clear();
+				audioQueue.clear();
+				sink.onSourceChanged();
+			}
+			activeHeard = now;
+			return true;
+		}
+		
+		/**
+		 * as group owner, queue a client's packet for 
+		 * whichever other clients need it
+		 * @param from client it came from
+		 * @param message control message type, if control
+		 * @return true if it was queued for anyone
+		 */
+		boolean relay(PeerTable.Peer from, int message, int length) {
+			whole.clear();
+			whole.limit(length);
+			if (header.type != ControlPacket || message == ConfigMessage) {
+				// media goes to everyone
+				return peers.relay(from, header.type, whole);
+			}
+			if (isTargeted(message) && length >= Header.Size + 5) {
+				// stream control goes to the stream's sender
+				int target = packet.getInt(Header.Size + 1);
+				if (target != source) {
+					PeerTable.Peer to = peers.findBySource(target);
+					return to != null && peers.relayTo(to, header.type, whole);
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * ask the peer for any missing video packets that are
+		 * due, and send a receiver report if one is due
+		 * 
+		 * called on the reader thread as video arrives, and on
+		 * the monitor's every tick, so retries and reports keep
+		 * going out when no video gets through at all, which is
+		 * just when the sender most needs to hear about it.
+		 */
+		void sendFeedback(int now) {
+			synchronized (feedbackLock) {
+				if (!hasActive) {
+					return;
+				}
+				sendNacks(now);
+				if (now - lastReport >= ReportInterval) {
+					lastReport = now;
+					sendReport(now);
+				}
+			}
+		}
+		
+		/**
+		 * ask the peer for any missing video packets that are due
+		 */
+		void sendNacks(int now) {
+			if (!nackList.isDue(now)) {
+				return;
+			}
+			SendQueue.Slot slot = claimPacket(ControlPacket, 0, now);
+			if (slot != null) {
+				int p = putTarget(slot, NackMessage);
+				int n = nackList.build(slot.data, p, now);
+				// may rarely be empty if everything due just expired
+				publishPacket(slot, p + n);
+			}
+		}
+		
+		/**
+		 * tell the peer how its video is getting through
+		 */
+		void sendReport(int now) {
+			SendQueue.Slot slot = claimPacket(ControlPacket, 0, now);
+			if (slot != null) {
+				int p = putTarget(slot, ReportMessage);
+				int n = report.build(stats[VideoPacket], slot.data, p, now);
+				publishPacket(slot, p + n);
+			}
+		}
+		
+		/**
+		 * ask the peer for its video codec config
+		 * video decoder thread only
+		 */
+		void requestConfig(int now) {
+			if (now - lastConfigRequest < ConfigRequestInterval) {
+				return;
+			}
+			lastConfigRequest = now;
+			SendQueue.Slot slot = claimPacket(ControlPacket, 0, now);
+			if (slot != null) {
+				publishPacket(slot, putTarget(slot, ConfigRequestMessage));
+			}
+		}
+		
+		/**
+		 * write a control message type and the source id
+		 * of the stream it's about, the one we're playing
+		 * @return offset of the rest of the message
+		 */
+		int putTarget(SendQueue.Slot slot, int message) {
+			int p = Header.Size;
+			slot.data.put(p, (byte) message);
+			slot.data.putInt(p + 1, activeSource);
+			return p + 5;
+		}
+		
+		/**
+		 * handle a control message from the peer
+		 */
+		void handleControl(ByteBuffer b, int offset, int length, int now) {
+			if (length < 1) {
+				return;
+			}
+			int message = b.get(offset);
+			if (isTargeted(message)) {
+				// skip anything about someone else's stream
+				if (length < 5 || b.getInt(offset + 1) != source) {
+					return;
+				}
+			}
+			switch (message) {
+			
+			case NackMessage:
+				for (int p = offset + 5; p + 4 <= offset + length; p += 4) {
+					int base = b.getShort(p) & 0xffff;
+					int mask = b.getShort(p + 2) & 0xffff;
+					resendVideo(base, now);
+					for (int i = 0; i < 16; i++) {
+						if ((mask & (1 << i)) != 0) {
+							resendVideo((base + i + 1) & 0xffff, now);
+						}
+					}
+				}
+				break;
 				
-				default:
-					Logg.d(TAG, "received unknown packet type (" + pd[0] + ")");
-					break;
+			case ReportMessage:
+				rateController.onReport(b, offset + 5, length - 5, now);
+				break;
+				
+			case ConfigMessage:
+				// goes in line with the frames, as it's 
+				// the decoder thread that owns the decoder
+				b.limit(offset + length).position(offset + 1);
+				videoQueue.put(b, 0, now, ConfigEntry);
+				break;
+				
+			case ConfigRequestMessage:
+				sendVideoConfig(null);
+				break;
+				
+			case PingMessage:
+				if (length >= 9) {
+					sendKeepalive(PongMessage, header.source, b.getInt(offset + 5));
+				}
+				break;
+				
+			case PongMessage:
+				if (length >= 9) {
+					int sample = now - b.getInt(offset + 5);
+					if (sample >= 0 && sample < peerTimeout) {
+						// smooth as TCP does, but take the first as is
+						rtt = rttSampled ? rtt + (sample - rtt) / 8 : sample;
+						rttSampled = true;
+					}
+				}
+				break;
+			}
+		}
+		
+		/**
+		 * queue a video packet from the history for resending,
+		 * if it can still make the receiver's deadline
+		 */
+		void resendVideo(int seq, int now) {
+			int n = history.fetch(seq, resend, now, Reassembler.Deadline - rtt / 2);
+			if (n > 0) {
+				SendQueue.Slot slot = scheduler.claim(Scheduler.Retransmit, VideoPacket);
+				if (slot != null) {
+					resend.flip();
+					slot.data.put(resend);
+					publishPacket(slot, n);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * queue a ping or pong
+	 * @param type PingMessage or PongMessage
+	 * @param target source id of the pinger, for a pong
+	 * @param time send time of the ping
+	 */
+	void sendKeepalive(int type, int target, int time) {
+		SendQueue.Slot slot = claimPacket(ControlPacket, 0, getClock());
+		if (slot != null) {
+			int p = Header.Size;
+			slot.data.put(p, (byte) type);
+			slot.data.putInt(p + 1, target);
+			slot.data.putInt(p + 5, time);
+			publishPacket(slot, p + 9);
+		}
+	}
+	
+	/**
+	 * media decoder thread class
+	 * 
+	 * decodes received media off a decode queue, so the reader
+	 * only has to demux, and a slow decode of one type holds
+	 * up neither the socket nor the other type
+	 */
+	class Decoder extends Needle {
+		
+		// queue to decode from
+		DecodeQueue queue;
+		
+		// packet type it holds
+		int type;
+		
+		public Decoder(String name, DecodeQueue queue, int type) {
+			super(name, 1);
+			this.queue = queue;
+			this.type = type;
+		}
+		
+		@Override
+		public void run() {
+			while (inPump()) {
+				DecodeQueue.Entry e;
+				while (isLooping() && (e = queue.take()) != null) {
+					decode(e);
+					queue.release(e);
+				}
+				// quiet for a while, so pick up any frames 
+				// still left in the decoder
+				if (type == VideoPacket && isReady) {
+					sink.onVideoIdle();
+				}
+			}
+		}
+		
+		/**
+		 * decode one queue entry
+		 */
+		void decode(DecodeQueue.Entry e) {
+			if (type == AudioPacket) {
+				sink.onAudio(e.data, e.timestamp, e.arrival);
+			} else if (e.kind == ConfigEntry) {
+				sink.onVideoConfig(e.data);
+			} else if (!sink.onVideo(e.data)) {
+				reader.requestConfig(getClock());
+			}
+		}
+	}
+	
+	/**
+	 * keepalive thread class
+	 * 
+	 * pings the peer now and then, which keeps our address
+	 * fresh at the far end and samples the round trip time,
+	 * and gives the peer up for lost if it goes quiet. also
+	 * keeps feedback on the incoming video going out, and has
+	 * the rate controller back off if none comes back on ours
+	 */
+	class Monitor extends Needle {
+		
+		// time the last ping went out
+		int lastPing;
+		
+		// next video sequence number as of the last tick
+		int lastVideoSequence;
+		
+		public Monitor() {
+			super("monitor", 50);
+		}
+		
+		@Override
+		public void run() {
+			while (inPump()) {
+				if (!isReady) {
+					continue;
+				}
+				int now = getClock();
+				if (now - lastPing >= PingInterval && sendToAddr != null) {
+					lastPing = now;
+					sendKeepalive(PingMessage, 0, now);
+				}
+				if (sendToAddr != null) {
+					reader.sendFeedback(now);
+				}
+				// back off if our video gets no news back
+				int seq = sequence.get(VideoPacket);
+				if (seq != lastVideoSequence) {
+					lastVideoSequence = seq;
+					rateController.onSending(now);
+				}
+				if (isOwner) {
+					peers.expire(now, peerTimeout);
+				}
+				if (now - lastHeard > peerTimeout && 
+						peerAlive.compareAndSet(true, false)) {
+					logger.d(TAG, "peer lost");
+					onPeerLost();
 				}
 			}
 		}
@@ -234,8 +1128,6 @@ public class Network {
 	 */
 	class Writer extends Needle {
 		
-		public DatagramPacket packet;
-		
 		public Writer() {
 			super("packet-writer", 1);
 		}
@@ -244,20 +1136,104 @@ public class Network {
 		public void run() {
 			while (inPump()) {
 				
-				// ignore spurious submissions if we're not connected
-				if (!isReady) {
-					continue;
-				}
+				pacer.setBitRate(rateController.getBitRate());
 				
-				try {
-					socket.send(packet);
-				} catch (IOException e) {
-					// might be thrown if we're sending packets
-					// during Wifi Direct disconnection, so we'll
-					// just quietly eat it
+				// the scheduler is asked afresh after every send,
+				// so audio queued mid-burst goes out next. video 
+				// waits while the pacer is out of tokens. relayed
+				// packets go out in turn with our own.
+				SendQueue.Slot slot;
+				for (;;) {
+					long now = System.nanoTime();
+					int lowest = pacer.isOpen(now) ? 
+							Scheduler.Video : Scheduler.Audio;
+					slot = scheduler.poll(lowest);
+					boolean relayed = isOwner && sendRelayed();
+					if (slot == null) {
+						if (relayed) {
+							continue;
+						}
+						break;
+					}
+					if (slot.cls > Scheduler.Audio) {
+						pacer.waited(now - slot.time);
+					}
+					pacer.spend(slot.length);
+
+					// drain but don't send if we're not connected
+					if (isReady && sendToAddr != null) {
+						ByteBuffer b = slot.data;
+						send(b, slot.length);
+						if (slot.cls == Scheduler.Video) {
+							history.store(b, slot.length);
+						}
+					}
+					scheduler.recycle(slot);
 				}
 				
+				// sleep until the next submission; check again
+				// after pausing so a racing resume isn't lost.
+				// held video keeps us running, and the pump's
+				// timed wait then serves as the pacing tick.
 				pause();
+				if (!scheduler.isEmpty() || !peers.isEmpty()) {
+					resume();
+				}
+			}
+		}
+		
+		/**
+		 * send one of our own packets to the peer, or as 
+		 * group owner, to every client
+		 */
+		void send(ByteBuffer b, int length) {
+			if (!isOwner) {
+				send(b, length, sendToAddr);
+				return;
+			}
+			for (int i = 0; i < PeerTable.MaxPeers; i++) {
+				InetSocketAddress addr = peers.get(i).address;
+				if (addr != null) {
+					send(b, length, addr);
+				}
+			}
+		}
+		
+		/**
+		 * send one relayed packet to each client that has any
+		 * @return true if there were any
+		 */
+		boolean sendRelayed() {
+			boolean any = false;
+			for (int i = 0; i < PeerTable.MaxPeers; i++) {
+				PeerTable.Peer peer = peers.get(i);
+				SendQueue queue = peer.queue;
+				SendQueue.Slot slot = queue != null ? queue.poll() : null;
+				if (slot != null) {
+					// the client may have left since, and another
+					// taken its entry; drop it if so
+					InetSocketAddress addr = peer.address;
+					if (isReady && addr != null && peer.isCurrent(slot)) {
+						send(slot.data, slot.length, addr);
+					}
+					queue.recycle(slot);
+					any = true;
+				}
+			}
+			return any;
+		}
+		
+		/**
+		 * send a packet to one address
+		 */
+		void send(ByteBuffer b, int length, InetSocketAddress addr) {
+			b.limit(length).position(0);
+			try {
+				transport.send(b, addr);
+			} catch (IOException e) {
+				// might be thrown if we're sending packets
+				// during Wifi Direct disconnection, so we'll
+				// just quietly eat it
 			}
 		}
 	}
@@ -273,5 +1249,17 @@ public class Network {
 	 * override in subclass
 	 */
 	protected void onTermination() {}
+	
+	/**
+	 * called when the peer has gone quiet for too long
+	 * override in subclass
+	 */
+	protected void onPeerLost() {}
+	
+	/**
+	 * called when a lost peer is heard from again
+	 * override in subclass
+	 */
+	protected void onPeerFound() {}
 
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+package com.wordsaretoys.klammer.stream;
+
+/**
+ * token bucket that paces video onto the air
+ *
+ * tokens (bytes) accrue at a little over the target video
+ * rate, up to the burst allowance. video may only go out
+ * while the bucket holds tokens, so a keyframe leaves as a
+ * steady stream spread over the frame interval rather than
+ * in one burst that overflows the receiver's socket buffer.
+ * audio and control packets aren't held back, but they do
+ * spend tokens, so the total stays near the target.
+ *
+ * writer thread only, apart from the setters and getters.
+ */
+public class Pacer {
+
+	// send rate over the target bit rate, so a frame a bit
+	// larger than average still clears within its interval
+	static float PacingFactor = 1.5f;
+
+	// default burst allowance in bytes
+	static int DefaultBurst = 4 * Network.PacketSize;
+
+	// smoothing for the queue delay estimate
+	static float DelayGain = 1 / 16f;
+
+	// fill rate in bytes per second
+	volatile long rate;
+
+	// most tokens the bucket may hold, in bytes
+	volatile int burst = DefaultBurst;
+
+	// tokens on hand in bytes, may run negative
+	long tokens = DefaultBurst;
+
+	// time the bucket was last topped up, in ns
+	long lastTime;
+	boolean started;
+
+	// recent time paced packets waited to go out, in ms
+	volatile float queueDelay;
+
+	/**
+	 * ctor
+	 * @param bitRate starting target bit rate
+	 */
+	public Pacer(int bitRate) {
+		setBitRate(bitRate);
+	}
+
+	/**
+	 * set the target rate to pace to
+	 * @param bitRate bits per second
+	 */
+	public void setBitRate(int bitRate) {
+		rate = Math.max(1, (long)(bitRate / 8 * PacingFactor));
+	}
+
+	/**
+	 * set the burst allowance, i.e. how much may go out
+	 * back to back after a quiet spell
+	 * @param bytes bucket size in bytes
+	 */
+	public void setBurst(int bytes) {
+		burst = Math.max(bytes, Network.PacketSize);
+	}
+
+	/**
+	 * @return burst allowance in bytes
+	 */
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * top up the bucket and see if a paced packet may go
+	 * @param now current time in ns
+	 * @return true if the bucket holds tokens
+	 */
+	public boolean isOpen(long now) {
+		if (!started) {
+			started = true;
+			lastTime = now;
+		}
+		long r = rate;
+		long add = (now - lastTime) * r / 1000000000L;
+		if (add > 0) {
+			tokens += add;
+			// advance only by the time accounted for, so
+			// the remainder carries over to the next call
+			lastTime += add * 1000000000L / r;
+		}
+		if (tokens >= burst) {
+			tokens = burst;
+			lastTime = now;
+		}
+		return tokens > 0;
+	}
+
+	/**
+	 * take tokens for a packet sent
+	 * @param length packet length in bytes
+	 */
+	public void spend(int length) {
+		tokens -= length;
+	}
+
+	/**
+	 * note how long a paced packet waited to go out
+	 * @param wait time waited in ns
+	 */
+	public void waited(long wait) {
+		queueDelay += (wait / 1000000f - queueDelay) * DelayGain;
+	}
+
+	/**
+	 * @return recent time paced packets waited to be sent, in ms
+	 */
+	public float getQueueDelay() {
+		return queueDelay;
+	}
+}
@@ -0,0 +1,197 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * splits encoded video frames into datagrams that fit
+ * under the path MTU, so losing one IP fragment no longer
+ * loses a whole keyframe
+ *
+ * each fragment carries a small header after the packet
+ * header, which the receiving Reassembler uses to put the
+ * frame back together:
+ *
+ *  0-1    frame id, wraps at 16 bits
+ *  2      fragment index (parity group index for parity)
+ *  3      fragment count
+ *  4      fragments per parity group, 0 if no parity
+ *
+ * if parity is enabled, every group of fragments is followed
+ * by a parity packet (Header.FlagParity set) whose payload is
+ * the XOR of the group's fragment lengths (2 bytes) and of
+ * the fragments themselves, zero-padded to the longest. the
+ * receiver can rebuild any one lost fragment per group.
+ *
+ * send() is called from the video encoder's drain thread,
+ * by way of Video.onEncodedFrame(). the frame id and parity
+ * state aren't locked, so it must only ever be called from
+ * one thread at a time; setGroupSize() may be called from any.
+ */
+public class Packetizer {
+
+	// fragment header length in bytes
+	public static final int HeaderSize = 5;
+
+	// payload bytes carried by each fragment but the last,
+	// leaving room for the length field of parity packets
+	public static final int FragmentSize =
+			Network.PacketSize - Header.Size - HeaderSize - 2;
+
+	// largest encoded frame we send: room for a 720p keyframe
+	// at the top of the resolution ladder and bit rate range
+	public static final int MaxFrameSize = 192 * 1024;
+
+	// most fragments a single frame may be split into; the
+	// fragment header's index and count are one byte each
+	public static final int MaxFragments = 
+			Math.min((MaxFrameSize + FragmentSize - 1) / FragmentSize, 255);
+
+	// smallest parity group, i.e. the most overhead allowed
+	public static final int MinGroupSize = 2;
+
+	// most parity groups a single frame may have
+	public static final int MaxGroups = 
+			(MaxFragments + MinGroupSize - 1) / MinGroupSize;
+
+	// most packets a single frame goes out as, with parity;
+	// the queues it passes through must hold this many
+	public static final int MaxPackets = MaxFragments + MaxGroups;
+
+	// network object that owns the send queue
+	Network network;
+
+	// id of the next frame
+	int frameId;
+
+	// frames dropped for being too large to send
+	volatile int oversized;
+
+	// fragments per parity group, 0 to disable
+	volatile int groupSize;
+
+	// parity accumulator: XOR of lengths, XOR of data, and
+	// length of the longest fragment folded in so far
+	int parityLength;
+	byte[] parity = new byte[FragmentSize];
+	int paritySize;
+
+	/**
+	 * ctor
+	 * @param network parent network object
+	 */
+	public Packetizer(Network network) {
+		this.network = network;
+	}
+
+	/**
+	 * set the forward error correction overhead
+	 * may be called from any thread; applies from the next frame
+	 * @param size fragments per parity packet, or 0 to disable
+	 */
+	public void setGroupSize(int size) {
+		groupSize = size <= 0 ? 0 : Math.min(Math.max(size, MinGroupSize), MaxFragments);
+	}
+
+	/**
+	 * @return number of frames dropped for being too large
+	 */
+	public int getOversized() {
+		return oversized;
+	}
+
+	/**
+	 * @return fragments per parity packet, or 0 if disabled
+	 */
+	public int getGroupSize() {
+		return groupSize;
+	}
+
+	/**
+	 * fragment and queue an encoded frame
+	 * @param frame encoded frame data
+	 * @param length length of frame data
+	 * @param timestamp capture time of the frame
+	 * @return false if the frame is too large to send, in
+	 * which case it's dropped and counted
+	 */
+	public boolean send(byte[] frame, int length, long timestamp) {
+		int count = (length + FragmentSize - 1) / FragmentSize;
+		if (count > MaxFragments) {
+			oversized++;
+			return false;
+		}
+		int id = frameId;
+		frameId = (frameId + 1) & 0xffff;
+		int k = groupSize;
+
+		for (int i = 0, offset = 0; i < count; i++, offset += FragmentSize) {
+			int size = Math.min(FragmentSize, length - offset);
+			SendQueue.Slot slot = network.claimPacket(
+					Network.VideoPacket, 0, timestamp);
+			if (slot != null) {
+				int p = putHeader(slot.data, id, i, count, k);
+				slot.data.position(p);
+				slot.data.put(frame, offset, size);
+				network.publishPacket(slot, p + size);
+			}
+
+			if (k > 0) {
+				accumulate(frame, offset, size, i % k == 0);
+				if (i % k == k - 1 || i == count - 1) {
+					sendParity(id, i / k, count, k, timestamp);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * write the fragment header after the packet header
+	 * @return offset of the fragment payload
+	 */
+	int putHeader(ByteBuffer b, int id, int index, int count, int k) {
+		int p = Header.Size;
+		b.putShort(p, (short) id);
+		b.put(p + 2, (byte) index);
+		b.put(p + 3, (byte) count);
+		b.put(p + 4, (byte) k);
+		return p + HeaderSize;
+	}
+
+	/**
+	 * fold a fragment into the parity accumulator
+	 * @param first true if this fragment starts a new group
+	 */
+	void accumulate(byte[] frame, int offset, int size, boolean first) {
+		if (first) {
+			parityLength = size;
+			paritySize = size;
+			System.arraycopy(frame, offset, parity, 0, size);
+		} else {
+			parityLength ^= size;
+			// extend the accumulator with zeros as needed
+			for (int j = paritySize; j < size; j++) {
+				parity[j] = 0;
+			}
+			paritySize = Math.max(paritySize, size);
+			for (int j = 0; j < size; j++) {
+				parity[j] ^= frame[offset + j];
+			}
+		}
+	}
+
+	/**
+	 * queue the parity packet for a finished group
+	 */
+	void sendParity(int id, int group, int count, int k, long timestamp) {
+		SendQueue.Slot slot = network.claimPacket(
+				Network.VideoPacket, Header.FlagParity, timestamp);
+		if (slot != null) {
+			int p = putHeader(slot.data, id, group, count, k);
+			slot.data.putShort(p, (short) parityLength);
+			slot.data.position(p + 2);
+			slot.data.put(parity, 0, paritySize);
+			network.publishPacket(slot, p + 2 + paritySize);
+		}
+	}
+}
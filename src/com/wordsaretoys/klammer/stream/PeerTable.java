@@ -0,0 +1,227 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * clients of the group owner, for relaying media between them
+ *
+ * the owner forwards each client's packets to every other
+ * client as they are, without decoding or transcoding. each
+ * client has its own bounded relay queue, so a slow one only
+ * loses its own packets and never holds the others up. the
+ * table is a fixed array and relay buffers are pooled, so a
+ * relayed packet costs a copy but no allocation.
+ *
+ * find() and relay() are called from the reader thread,
+ * expire() from the monitor thread, and poll() and recycle()
+ * on the queues from the writer thread. find() and expire()
+ * share the table's lock; the rest only read volatile fields.
+ *
+ * an entry freed by expire() may still have packets queued
+ * for the client that left, and only the writer may drain
+ * its queue. so each entry counts its generations, bumped
+ * when a new client takes it, and every relayed packet is
+ * stamped with the generation it was queued for; the writer
+ * drops any stamped with one that has passed, rather than
+ * send it on to the newcomer.
+ */
+public class PeerTable {
+
+	// most clients the owner will relay between
+	static int MaxPeers = 4;
+
+	// slots in each client's relay queue, room enough
+	// for the largest video frame and its parity
+	static int QueueSize = Packetizer.MaxPackets + 16;
+
+	/**
+	 * client of the group owner
+	 */
+	public static class Peer {
+		// client address, or null if this entry is free
+		public volatile InetSocketAddress address;
+		// client stream source id, 0 until known
+		public volatile int source;
+		// time we last heard from the client
+		volatile int lastHeard;
+		// packets from other clients waiting to go to this one
+		SendQueue queue;
+		// packets relayed to this client, and dropped on a full queue
+		volatile int relayed, dropped;
+		// bumped each time a new client takes the entry
+		volatile int generation;
+
+		/**
+		 * writer thread only
+		 * @param slot slot polled from the queue
+		 * @return true if it was queued for the current client
+		 */
+		public boolean isCurrent(SendQueue.Slot slot) {
+			return slot.generation == generation;
+		}
+	}
+
+	// table entries
+	Peer[] peers;
+
+	// length of each relay buffer
+	int size;
+
+	/**
+	 * ctor
+	 * @param size length of each relay buffer in bytes
+	 */
+	public PeerTable(int size) {
+		this.size = size;
+		peers = new Peer[MaxPeers];
+		for (int i = 0; i < MaxPeers; i++) {
+			peers[i] = new Peer();
+		}
+	}
+
+	/**
+	 * find the entry for a client, adding it if new
+	 * @param from address a packet came from
+	 * @param source source id from the packet header
+	 * @param now local time in ms
+	 * @return entry, or null if the table is full
+	 */
+	public synchronized Peer find(InetSocketAddress from, int source, int now) {
+		InetAddress a = from.getAddress();
+		Peer free = null;
+		for (int i = 0; i < MaxPeers; i++) {
+			Peer p = peers[i];
+			InetSocketAddress pa = p.address;
+			if (pa != null && pa.getAddress().equals(a)) {
+				p.source = source;
+				p.lastHeard = now;
+				return p;
+			}
+			if (pa == null && free == null) {
+				free = p;
+			}
+		}
+		if (free != null) {
+			// queues are only allocated once an entry is used,
+			// so clients that never relay don't pay for them
+			if (free.queue == null) {
+				free.queue = new SendQueue(QueueSize, size);
+			}
+			// anything still queued for the last client is
+			// stale; the generation goes ahead of the address,
+			// so a writer that sees the new client drops it
+			free.generation++;
+			free.relayed = free.dropped = 0;
+			free.source = source;
+			free.lastHeard = now;
+			free.address = from;
+		}
+		return free;
+	}
+
+	/**
+	 * find the entry for a client by its stream source id
+	 * @return entry, or null if none
+	 */
+	public Peer findBySource(int source) {
+		for (int i = 0; i < MaxPeers; i++) {
+			Peer p = peers[i];
+			if (p.address != null && p.source == source) {
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * forget clients that have gone quiet
+	 * @param now local time in ms
+	 * @param timeout longest a client may go unheard, in ms
+	 */
+	public synchronized void expire(int now, int timeout) {
+		for (int i = 0; i < MaxPeers; i++) {
+			Peer p = peers[i];
+			if (p.address != null && now - p.lastHeard > timeout) {
+				p.address = null;
+			}
+		}
+	}
+
+	/**
+	 * queue a packet for every client but the one it came from
+	 * @param from client the packet came from
+	 * @param type packet type
+	 * @param packet whole packet, from position to limit
+	 * @return true if it was queued for anyone
+	 */
+	public boolean relay(Peer from, int type, ByteBuffer packet) {
+		boolean queued = false;
+		for (int i = 0; i < MaxPeers; i++) {
+			Peer p = peers[i];
+			if (p != from && p.address != null) {
+				queued |= relayTo(p, type, packet);
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * queue a packet for one client
+	 * @param to client to send it to
+	 * @param type packet type
+	 * @param packet whole packet, from position to limit
+	 * @return true if it was queued
+	 */
+	public boolean relayTo(Peer to, int type, ByteBuffer packet) {
+		SendQueue.Slot slot = to.queue.claim(type);
+		if (slot == null) {
+			to.dropped++;
+			return false;
+		}
+		int start = packet.position();
+		int length = packet.remaining();
+		slot.data.put(packet);
+		packet.position(start);
+		slot.generation = to.generation;
+		to.queue.publish(slot, length);
+		to.relayed++;
+		return true;
+	}
+
+	/**
+	 * @param i entry index, 0 to MaxPeers - 1
+	 * @return table entry, which may be free
+	 */
+	public Peer get(int i) {
+		return peers[i];
+	}
+
+	/**
+	 * @return number of clients in the table
+	 */
+	public int getCount() {
+		int n = 0;
+		for (int i = 0; i < MaxPeers; i++) {
+			if (peers[i].address != null) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * writer thread only
+	 * @return true if no relayed packets are waiting
+	 */
+	public boolean isEmpty() {
+		for (int i = 0; i < MaxPeers; i++) {
+			SendQueue q = peers[i].queue;
+			if (q != null && !q.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,227 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * estimates the bandwidth available for video from receiver
+ * reports and picks a target bit rate and frame rate
+ *
+ * loosely after Google congestion control: heavy loss backs
+ * off in proportion to the loss, growing queueing delay backs
+ * off to just under the rate the receiver says it's getting,
+ * and a clean report probes upward a few percent at a time.
+ * frame rate drops at low bit rates so each frame keeps
+ * enough bits to be worth looking at.
+ *
+ * below that, the picture steps down a resolution ladder of
+ * full, half and quarter size, each rung with a bit rate to
+ * step down below and a higher one to step back up above,
+ * so a rate hovering near a step doesn't flap between rungs.
+ * a CPU-bound device can hold the picture down a rung too.
+ *
+ * a link that collapses outright may carry no reports back,
+ * or only reports showing nothing new got through, so while
+ * video is going out and no report with news has come in for
+ * a few report intervals, the rate halves and the picture 
+ * steps down a rung, and again for every interval after.
+ *
+ * reports arrive on the reader thread, and sending is noted
+ * from the monitor's; the targets are read from the camera
+ * thread.
+ */
+public class RateController {
+
+	// bit rate limits in bits per second
+	static int MinBitRate = 64000;
+	static int MaxBitRate = 1000000;
+
+	// fraction lost above which we back off, below which we probe
+	static float HighLoss = 0.10f;
+	static float LowLoss = 0.02f;
+
+	// queueing delay taken as a sign of overuse, in ms
+	static int DelayThreshold = 50;
+
+	// multipliers for probing and for delay backoff
+	static float Increase = 1.08f;
+	static float Backoff = 0.85f;
+
+	// time without news from the receiver before we back
+	// off, in ms, and the multiplier for it
+	static int ReportTimeout = 1500;
+	static float TimeoutBackoff = 0.5f;
+
+	// frame rates used below the matching bit rates
+	static int[] RateSteps = { 100000, 200000 };
+	static int[] FrameRates = { 7, 10 };
+
+	// resolution ladder: factor to divide the camera size
+	// by on each rung, bit rate below which each rung steps
+	// down to the next, and above which it steps back up
+	static int[] Scales = { 1, 2, 4 };
+	static int[] DownRates = { 250000, 120000, 0 };
+	static int[] UpRates = { Integer.MAX_VALUE, 350000, 180000 };
+
+	// current targets
+	volatile int bitRate;
+	volatile int frameRate;
+
+	// current rung, and lowest rung allowed
+	volatile int rung;
+	volatile int leastRung;
+
+	// frame rate used when bandwidth isn't a problem
+	int maxFrameRate;
+
+	// last report received
+	Report report = new Report();
+
+	// highest sequence number the last report with news
+	// had, and whether there's been one
+	int lastHighest;
+	boolean reported;
+
+	// time of the last report with news, or of the last
+	// backoff for want of one, and of the last sending noted
+	int heard, lastSending;
+
+	// true once sending has been noted
+	boolean sending;
+
+	/**
+	 * ctor
+	 * @param bitRate starting bit rate
+	 * @param frameRate highest frame rate
+	 */
+	public RateController(int bitRate, int frameRate) {
+		this.bitRate = bitRate;
+		this.frameRate = frameRate;
+		maxFrameRate = frameRate;
+	}
+
+	/**
+	 * update the estimate from a receiver report
+	 * @param b packet buffer
+	 * @param offset offset of the report
+	 * @param length bytes available
+	 * @param now local time in ms
+	 */
+	public synchronized void onReport(ByteBuffer b, int offset, int length, int now) {
+		if (!report.read(b, offset, length)) {
+			return;
+		}
+		// a report showing nothing new got through says
+		// nothing about the path, so it's left to the timeout
+		if (reported && report.highest == lastHighest) {
+			return;
+		}
+		reported = true;
+		lastHighest = report.highest;
+		heard = now;
+		
+		float loss = report.fractionLost / 256f;
+		float rate = bitRate;
+		if (loss > HighLoss) {
+			rate *= 1 - 0.5f * loss;
+		} else if (report.queueDelay > DelayThreshold) {
+			// the receiver's rate is what actually gets through
+			float got = report.bitRate > 0 ? report.bitRate : rate;
+			rate = Backoff * Math.min(rate, got);
+		} else if (loss < LowLoss) {
+			rate *= Increase;
+		}
+		int r = Math.min(Math.max((int) rate, MinBitRate), MaxBitRate);
+
+		int n = rung;
+		if (r < DownRates[n] && n < Scales.length - 1) {
+			n++;
+		} else if (r > UpRates[n] && n > 0) {
+			n--;
+		}
+		setTargets(r, n);
+	}
+
+	/**
+	 * note that video is going out, and back off if the
+	 * receiver hasn't reported anything new for too long
+	 * @param now local time in ms
+	 */
+	public synchronized void onSending(int now) {
+		if (!sending || now - lastSending > ReportTimeout) {
+			// just started, or back after a pause, so give 
+			// the receiver time to report on it
+			sending = true;
+			heard = now;
+		}
+		lastSending = now;
+		if (now - heard < ReportTimeout) {
+			return;
+		}
+		heard = now;
+		int r = Math.max((int)(bitRate * TimeoutBackoff), MinBitRate);
+		setTargets(r, Math.min(rung + 1, Scales.length - 1));
+	}
+
+	/**
+	 * set the targets for a bit rate and a ladder rung,
+	 * picking the frame rate to go with the bit rate
+	 */
+	void setTargets(int r, int n) {
+		int fps = maxFrameRate;
+		for (int i = 0; i < RateSteps.length; i++) {
+			if (r < RateSteps[i]) {
+				fps = Math.min(fps, FrameRates[i]);
+				break;
+			}
+		}
+		bitRate = r;
+		frameRate = fps;
+		rung = Math.max(n, leastRung);
+	}
+
+	/**
+	 * hold the picture down the ladder whatever the bandwidth,
+	 * e.g. while the device can't convert and encode frames at
+	 * full size in time; 1 lifts the hold
+	 * @param scale smallest factor to divide the camera size by
+	 */
+	public synchronized void setLeastScale(int scale) {
+		int n = 0;
+		while (n < Scales.length - 1 && Scales[n] < scale) {
+			n++;
+		}
+		leastRung = n;
+		if (rung < n) {
+			rung = n;
+		}
+	}
+
+	/**
+	 * @return target video bit rate in bits per second
+	 */
+	public int getBitRate() {
+		return bitRate;
+	}
+
+	/**
+	 * @return target video frame rate
+	 */
+	public int getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * @return factor to divide the camera size by for the
+	 * current rung of the resolution ladder
+	 */
+	public int getScale() {
+		return Scales[rung];
+	}
+
+	/**
+	 * @return the last report received
+	 */
+	public Report getReport() {
+		return report;
+	}
+}
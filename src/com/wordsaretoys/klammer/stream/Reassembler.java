@@ -0,0 +1,371 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * puts fragmented video frames back together
+ *
+ * frames are handed on whole and in frame id order. a frame
+ * that is still incomplete after the deadline is abandoned,
+ * as are any fragments arriving for it afterwards. a single
+ * missing fragment in a parity group is rebuilt from the
+ * group's parity packet. all frame and parity buffers are
+ * allocated up front. reader thread only.
+ */
+public class Reassembler {
+
+	// number of frames that may be in assembly at once
+	static int FrameCount = 4;
+
+	// time allowed to complete a frame in ms
+	static int Deadline = 200;
+
+	/**
+	 * frame in assembly
+	 */
+	static class Frame {
+		// true if this frame slot is in use
+		boolean busy;
+		// frame id, capture timestamp and arrival of first fragment
+		int id, timestamp, arrival;
+		// fragment count, fragments received, and bitmap of the same
+		int count, received;
+		long[] mask = new long[(Packetizer.MaxFragments + 63) >> 6];
+		// total length in bytes, known once the last fragment arrives
+		int length;
+		// frame data, direct so it can go straight to the decoder
+		ByteBuffer data = ByteBuffer.allocateDirect(
+				Packetizer.FragmentSize * Packetizer.MaxFragments);
+		// fragments per parity group, 0 if none
+		int groupSize;
+		// bitmap of parity packets received
+		long[] parityMask = new long[(Packetizer.MaxGroups + 63) >> 6];
+		// per group: XOR of fragment lengths, parity payload and its length
+		int[] parityLength = new int[Packetizer.MaxGroups];
+		ByteBuffer parity = ByteBuffer.allocateDirect(
+				Packetizer.FragmentSize * Packetizer.MaxGroups);
+		int[] paritySize = new int[Packetizer.MaxGroups];
+	}
+
+	// frame slots
+	Frame[] frames;
+
+	// id of the last frame delivered or abandoned
+	int lastId;
+	boolean started;
+
+	// counters
+	int completed, abandoned, late, recovered;
+
+	/**
+	 * ctor
+	 */
+	public Reassembler() {
+		frames = new Frame[FrameCount];
+		for (int i = 0; i < FrameCount; i++) {
+			frames[i] = new Frame();
+		}
+	}
+
+	/**
+	 * drop all partial frames, e.g. when the sender restarts
+	 */
+	public void reset() {
+		for (int i = 0; i < FrameCount; i++) {
+			frames[i].busy = false;
+		}
+		started = false;
+	}
+
+	/**
+	 * add a fragment or parity packet
+	 * @param flags flags from the packet header
+	 * @param timestamp capture timestamp from the packet header
+	 * @param b packet buffer; its position and limit are changed
+	 * @param offset offset of the fragment header in packet buffer
+	 * @param length length of fragment header and payload
+	 * @param now local time in ms
+	 */
+	public void add(int flags, int timestamp, ByteBuffer b, int offset, int length, int now) {
+		if (length < Packetizer.HeaderSize) {
+			return;
+		}
+		boolean isParity = (flags & Header.FlagParity) != 0;
+		int id = b.getShort(offset) & 0xffff;
+		int index = b.get(offset + 2) & 0xff;
+		int count = b.get(offset + 3) & 0xff;
+		int k = b.get(offset + 4) & 0xff;
+		int size = length - Packetizer.HeaderSize;
+		if (count == 0 || count > Packetizer.MaxFragments || 
+				size > Packetizer.FragmentSize + (isParity ? 2 : 0)) {
+			return;
+		}
+		if (k != 0 && (k < Packetizer.MinGroupSize || k > Packetizer.MaxFragments)) {
+			return;
+		}
+		if (isParity ? (k == 0 || size < 2 || index * k >= count) : index >= count) {
+			return;
+		}
+
+		if (!started) {
+			started = true;
+			lastId = (id - 1) & 0xffff;
+		} else if (!isNewer(id, lastId)) {
+			late++;
+			return;
+		}
+
+		Frame frame = find(id, count, k, now);
+		if (frame == null) {
+			// older than anything in assembly, with no room for it
+			late++;
+			return;
+		}
+		if (frame.count != count || frame.groupSize != k) {
+			// inconsistent header; can't trust this frame
+			release(frame);
+			return;
+		}
+		frame.timestamp = timestamp;
+		int p = offset + Packetizer.HeaderSize;
+		if (isParity) {
+			if (!isSet(frame.parityMask, index)) {
+				set(frame.parityMask, index);
+				frame.parityLength[index] = b.getShort(p) & 0xffff;
+				frame.paritySize[index] = size - 2;
+				copy(b, p + 2, frame.parity, index * Packetizer.FragmentSize, size - 2);
+				recover(frame, index);
+			}
+		} else {
+			if (!isSet(frame.mask, index)) {
+				set(frame.mask, index);
+				frame.received++;
+				copy(b, p, frame.data, index * Packetizer.FragmentSize, size);
+				if (index == count - 1) {
+					frame.length = index * Packetizer.FragmentSize + size;
+				}
+				if (k > 0) {
+					recover(frame, index / k);
+				}
+			}
+		}
+
+		flush(now);
+	}
+
+	/**
+	 * rebuild a fragment from its group's parity packet,
+	 * if it's the only one missing from the group
+	 * @param frame frame in assembly
+	 * @param group parity group index
+	 */
+	void recover(Frame frame, int group) {
+		if (!isSet(frame.parityMask, group)) {
+			return;
+		}
+		int lo = group * frame.groupSize;
+		int hi = Math.min(lo + frame.groupSize, frame.count);
+		int missing = -1;
+		for (int i = lo; i < hi; i++) {
+			if (!isSet(frame.mask, i)) {
+				if (missing >= 0) {
+					// more than one missing, can't help yet
+					return;
+				}
+				missing = i;
+			}
+		}
+		if (missing < 0) {
+			return;
+		}
+
+		int fs = Packetizer.FragmentSize;
+		int dst = missing * fs;
+		int size = frame.paritySize[group];
+		int length = frame.parityLength[group];
+		ByteBuffer d = frame.data;
+		copy(frame.parity, group * fs, d, dst, size);
+		for (int i = lo; i < hi; i++) {
+			if (i != missing) {
+				int src = i * fs;
+				int n = (i == frame.count - 1) ? frame.length - src : fs;
+				if (n > size) {
+					// parity doesn't cover this fragment; corrupt
+					return;
+				}
+				length ^= n;
+				// eight bytes at a time, then the odd ones
+				int j = 0;
+				for (; j + 8 <= n; j += 8) {
+					d.putLong(dst + j, d.getLong(dst + j) ^ d.getLong(src + j));
+				}
+				for (; j < n; j++) {
+					d.put(dst + j, (byte)(d.get(dst + j) ^ d.get(src + j)));
+				}
+			}
+		}
+		if (length <= 0 || length > size) {
+			return;
+		}
+
+		set(frame.mask, missing);
+		frame.received++;
+		if (missing == frame.count - 1) {
+			frame.length = dst + length;
+		}
+		recovered++;
+	}
+
+	/**
+	 * deliver complete frames and abandon expired ones, in order
+	 * @param now local time in ms
+	 */
+	public void flush(int now) {
+		Frame frame;
+		while ((frame = oldest()) != null) {
+			if (frame.received == frame.count) {
+				completed++;
+				frame.data.limit(frame.length).position(0);
+				onFrame(frame.data, frame.timestamp);
+				frame.data.clear();
+			} else if (now - frame.arrival > Deadline) {
+				abandoned++;
+			} else {
+				return;
+			}
+			lastId = frame.id;
+			release(frame);
+		}
+	}
+
+	/**
+	 * @return number of frames delivered
+	 */
+	public int getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * @return number of frames abandoned incomplete
+	 */
+	public int getAbandoned() {
+		return abandoned;
+	}
+
+	/**
+	 * @return number of fragments rebuilt from parity
+	 */
+	public int getRecovered() {
+		return recovered;
+	}
+
+	/**
+	 * @return number of fragments that arrived too late to use
+	 */
+	public int getLate() {
+		return late;
+	}
+
+	/**
+	 * find the slot assembling a frame, starting one if needed
+	 * @return slot, or null if all are busy with newer frames
+	 */
+	Frame find(int id, int count, int groupSize, int now) {
+		Frame free = null;
+		for (int i = 0; i < FrameCount; i++) {
+			Frame f = frames[i];
+			if (f.busy && f.id == id) {
+				return f;
+			}
+			if (!f.busy && free == null) {
+				free = f;
+			}
+		}
+		if (free == null) {
+			// out of slots: give up on the oldest frame, unless
+			// this one's older still, as it would then go out
+			// after the frame given up on
+			free = oldest();
+			if (!isNewer(id, free.id)) {
+				return null;
+			}
+			abandoned++;
+			if (isNewer(free.id, lastId)) {
+				lastId = free.id;
+			}
+		}
+		free.busy = true;
+		free.id = id;
+		free.count = count;
+		free.groupSize = groupSize;
+		Arrays.fill(free.parityMask, 0);
+		free.arrival = now;
+		free.received = 0;
+		Arrays.fill(free.mask, 0);
+		free.length = 0;
+		return free;
+	}
+
+	/**
+	 * @return busy frame with the lowest id, or null
+	 */
+	Frame oldest() {
+		Frame oldest = null;
+		for (int i = 0; i < FrameCount; i++) {
+			Frame f = frames[i];
+			if (f.busy && (oldest == null || isNewer(oldest.id, f.id))) {
+				oldest = f;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * return a frame slot to the free pool
+	 */
+	void release(Frame frame) {
+		frame.busy = false;
+	}
+
+	/**
+	 * copy bytes between buffers without allocating views
+	 * leaves the source limit moved and the destination cleared
+	 */
+	static void copy(ByteBuffer src, int from, ByteBuffer dst, int to, int n) {
+		src.limit(from + n).position(from);
+		dst.clear();
+		dst.position(to);
+		dst.put(src);
+	}
+
+	/**
+	 * @return true if bit i of a bitmap is set
+	 */
+	static boolean isSet(long[] m, int i) {
+		return (m[i >> 6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * set bit i of a bitmap
+	 */
+	static void set(long[] m, int i) {
+		m[i >> 6] |= 1L << i;
+	}
+
+	/**
+	 * @return true if id a comes after id b, allowing for wraparound
+	 */
+	static boolean isNewer(int a, int b) {
+		int d = (a - b) & 0xffff;
+		return d != 0 && d < 0x8000;
+	}
+
+	/**
+	 * called with each completed frame
+	 * override in subclass
+	 * @param data frame data, from position to limit
+	 * @param timestamp capture time of the frame
+	 */
+	protected void onFrame(ByteBuffer data, int timestamp) {}
+}
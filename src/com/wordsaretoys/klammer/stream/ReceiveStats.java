@@ -0,0 +1,266 @@
+package com.wordsaretoys.klammer.stream;
+
+/**
+ * tracks loss, reordering, duplication and interarrival
+ * jitter for one incoming stream, after RFC 3550 A.1/A.8
+ *
+ * update() and takeQueueDelay() are called with the network's
+ * feedback lock held. the getters may be called from anywhere 
+ * and return a recent snapshot.
+ */
+public class ReceiveStats {
+
+	// size of the duplicate detection window in packets
+	static final int Window = 64;
+
+	// return codes for update()
+	public static final int InOrder = 0;
+	public static final int Reordered = 1;
+	public static final int Duplicate = 2;
+	public static final int Stale = 3;
+
+	// true once the first packet has arrived
+	boolean started;
+
+	// first sequence number seen
+	int baseSequence;
+
+	// highest sequence number seen, and wraparound count
+	int maxSequence;
+	int cycles;
+
+	// bitmap of received packets, bit n = maxSequence - n
+	long window;
+
+	// packet counters
+	int received, reordered, duplicates, stale;
+
+	// sequence numbers skipped by the last packet
+	int gap;
+
+	// last relative transit time, and whether there is one
+	int transit;
+	boolean hasTransit;
+
+	// interarrival jitter in 1/16 ms
+	int jitter;
+
+	// payload bytes received
+	int bytes;
+
+	// lowest transit time seen, the uncongested baseline,
+	// and the lowest, total and count for the current interval
+	int minTransit, intervalMin;
+	long transitSum;
+	int transitCount;
+
+	// intervals until the baseline is refreshed
+	int rebase;
+
+	/**
+	 * forget everything, e.g. when the sender restarts
+	 */
+	public void reset() {
+		started = false;
+		hasTransit = false;
+		received = reordered = duplicates = stale = 0;
+		window = 0;
+		cycles = 0;
+		jitter = 0;
+		bytes = 0;
+		transitSum = transitCount = 0;
+		rebase = 0;
+	}
+
+	/**
+	 * account for an incoming packet
+	 * @param sequence 16-bit sequence number
+	 * @param timestamp capture timestamp in ms
+	 * @param arrival local arrival time in ms
+	 * @param length payload length in bytes
+	 * @return one of InOrder, Reordered, Duplicate, Stale
+	 */
+	public int update(int sequence, int timestamp, int arrival, int length) {
+		return update(sequence, timestamp, arrival, length, true);
+	}
+
+	/**
+	 * account for an incoming packet, which may be a resend
+	 * 
+	 * a resent packet's transit time includes the round trip
+	 * of the nack that asked for it, which says nothing about
+	 * congestion, so it counts towards neither the jitter nor
+	 * the queueing delay.
+	 * 
+	 * @param timed false to leave the transit time out
+	 * @return one of InOrder, Reordered, Duplicate, Stale
+	 */
+	public int update(int sequence, int timestamp, int arrival, int length, boolean timed) {
+		int t = arrival - timestamp;
+		if (!started) {
+			started = true;
+			baseSequence = maxSequence = sequence;
+			window = 1;
+			received = 1;
+			bytes = length;
+			if (timed) {
+				hasTransit = true;
+				transit = minTransit = intervalMin = t;
+			}
+			return InOrder;
+		}
+
+		int result;
+		int delta = (sequence - maxSequence) & 0xffff;
+		gap = 0;
+		if (delta == 0) {
+			duplicates++;
+			return Duplicate;
+		} else if (delta < 0x8000) {
+			// moving forward, possibly across a gap
+			if (sequence < maxSequence) {
+				cycles += 0x10000;
+			}
+			maxSequence = sequence;
+			window = delta < Window ? (window << delta) | 1 : 1;
+			gap = delta - 1;
+			result = InOrder;
+		} else {
+			// behind the highest sequence number
+			int back = (maxSequence - sequence) & 0xffff;
+			if (back >= Window) {
+				stale++;
+				return Stale;
+			}
+			long bit = 1L << back;
+			if ((window & bit) != 0) {
+				duplicates++;
+				return Duplicate;
+			}
+			window |= bit;
+			reordered++;
+			result = Reordered;
+		}
+		received++;
+		bytes += length;
+
+		if (!timed) {
+			return result;
+		}
+		if (!hasTransit) {
+			hasTransit = true;
+			transit = minTransit = intervalMin = t;
+		}
+
+		// queueing delay tracking
+		if (transitCount == 0 || t < intervalMin) {
+			intervalMin = t;
+		}
+		if (t < minTransit) {
+			minTransit = t;
+		}
+		transitSum += t;
+		transitCount++;
+
+		int d = t - transit;
+		transit = t;
+		if (d < 0) {
+			d = -d;
+		}
+		jitter += d - ((jitter + 8) >> 4);
+		return result;
+	}
+
+	/**
+	 * get the mean queueing delay since the last call, i.e. how
+	 * far transit times sat above the uncongested baseline. the
+	 * clocks at either end needn't agree, as only differences
+	 * in transit time count.
+	 * @return queueing delay in ms, 0 if nothing arrived
+	 */
+	public int takeQueueDelay() {
+		if (transitCount == 0) {
+			return 0;
+		}
+		int delay = (int)(transitSum / transitCount) - minTransit;
+		// refresh the baseline now and then, in case the
+		// clocks drift or the route changes
+		if (++rebase >= 30) {
+			rebase = 0;
+			minTransit = intervalMin;
+		}
+		transitSum = transitCount = 0;
+		return Math.max(0, delay);
+	}
+
+	/**
+	 * @return payload bytes received
+	 */
+	public int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return highest sequence number seen, extended past 16 bits
+	 */
+	public int getExtendedMax() {
+		return cycles + maxSequence;
+	}
+
+	/**
+	 * @return number of sequence numbers skipped over by
+	 *         the last packet, 0 unless it was InOrder
+	 */
+	public int getGap() {
+		return gap;
+	}
+
+	/**
+	 * @return number of packets expected so far
+	 */
+	public int getExpected() {
+		return started ? cycles + maxSequence - baseSequence + 1 : 0;
+	}
+
+	/**
+	 * @return number of distinct packets received
+	 */
+	public int getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return number of packets missing (may later arrive late)
+	 */
+	public int getLost() {
+		return Math.max(0, getExpected() - received);
+	}
+
+	/**
+	 * @return number of packets that arrived out of order
+	 */
+	public int getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * @return number of duplicate packets discarded
+	 */
+	public int getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * @return number of packets too old to place
+	 */
+	public int getStale() {
+		return stale;
+	}
+
+	/**
+	 * @return interarrival jitter estimate in ms
+	 */
+	public float getJitter() {
+		return jitter / 16f;
+	}
+}
@@ -0,0 +1,107 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * receiver report on the incoming video stream, sent back
+ * to the sender so it can adapt its rate
+ *
+ *  0      fraction lost since the last report, in 1/256ths
+ *  1-4    cumulative packets lost
+ *  5-8    extended highest sequence number received
+ *  9-10   interarrival jitter in ms
+ *  11-12  mean queueing delay since the last report in ms
+ *  13-16  payload bit rate received since the last report
+ *
+ * one instance builds reports on the receiving side, another
+ * parses them on the sending side.
+ */
+public class Report {
+
+	// report length in bytes
+	public static final int Size = 17;
+
+	// report fields
+	public int fractionLost;
+	public int lost;
+	public int highest;
+	public int jitter;
+	public int queueDelay;
+	public int bitRate;
+
+	// counters at the time of the last report
+	int lastExpected, lastReceived, lastBytes, lastTime;
+	boolean started;
+
+	/**
+	 * fill in the fields from stream statistics and write them
+	 * @param stats statistics for the stream reported on
+	 * @param b destination buffer
+	 * @param offset offset to write at
+	 * @param now local time in ms
+	 * @return number of bytes written
+	 */
+	public int build(ReceiveStats stats, ByteBuffer b, int offset, int now) {
+		int expected = stats.getExpected();
+		int received = stats.getReceived();
+		int bytes = stats.getBytes();
+		if (!started) {
+			started = true;
+			lastExpected = lastReceived = lastBytes = 0;
+			lastTime = now;
+		}
+
+		int de = expected - lastExpected;
+		int dr = received - lastReceived;
+		fractionLost = (de <= 0 || dr >= de) ? 0 : ((de - dr) << 8) / de;
+		if (fractionLost > 255) {
+			fractionLost = 255;
+		}
+		lost = stats.getLost();
+		highest = stats.getExtendedMax();
+		jitter = Math.min(0xffff, (int) stats.getJitter());
+		queueDelay = Math.min(0xffff, stats.takeQueueDelay());
+		int dt = now - lastTime;
+		bitRate = dt > 0 ? (int)((bytes - lastBytes) * 8000L / dt) : 0;
+
+		lastExpected = expected;
+		lastReceived = received;
+		lastBytes = bytes;
+		lastTime = now;
+
+		b.put(offset, (byte) fractionLost);
+		b.putInt(offset + 1, lost);
+		b.putInt(offset + 5, highest);
+		b.putShort(offset + 9, (short) jitter);
+		b.putShort(offset + 11, (short) queueDelay);
+		b.putInt(offset + 13, bitRate);
+		return Size;
+	}
+
+	/**
+	 * reset the interval counters, e.g. when the sender restarts
+	 */
+	public void reset() {
+		started = false;
+	}
+
+	/**
+	 * parse a report
+	 * @param b packet buffer
+	 * @param offset offset of the report
+	 * @param length bytes available
+	 * @return false if the report is truncated
+	 */
+	public boolean read(ByteBuffer b, int offset, int length) {
+		if (length < Size) {
+			return false;
+		}
+		fractionLost = b.get(offset) & 0xff;
+		lost = b.getInt(offset + 1);
+		highest = b.getInt(offset + 5);
+		jitter = b.getShort(offset + 9) & 0xffff;
+		queueDelay = b.getShort(offset + 11) & 0xffff;
+		bitRate = b.getInt(offset + 13);
+		return true;
+	}
+}
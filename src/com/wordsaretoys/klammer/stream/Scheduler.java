@@ -0,0 +1,238 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * egress scheduler feeding the packet writer
+ *
+ * packets are queued by traffic class, each class with its
+ * own bounded send queue, and the writer takes them out in
+ * priority order: control, audio, video retransmissions, then
+ * fresh video. so a keyframe burst can never hold audio up
+ * behind it. in strict mode a lower class only goes out when
+ * every higher one is empty; in weighted mode each class gets
+ * a share of sends per round, so a flood of one class can't
+ * starve the rest entirely.
+ *
+ * producers may claim and publish from any thread. poll and
+ * recycle are for the writer thread only.
+ */
+public class Scheduler {
+
+	// traffic classes, highest priority first
+	public static final int Control = 0;
+	public static final int Audio = 1;
+	public static final int Retransmit = 2;
+	public static final int Video = 3;
+	public static final int ClassCount = 4;
+
+	// slots per class queue; fresh video has room for the
+	// largest frame and its parity at once
+	static int[] Capacity = { 16, 16, 32, Packetizer.MaxPackets };
+
+	// sends per round for each class in weighted mode
+	static int[] Weight = { 8, 4, 2, 1 };
+
+	// one queue per class
+	SendQueue[] queues;
+
+	// true to serve classes by strict priority
+	volatile boolean strict = true;
+
+	// sends left in the current round, per class (writer only)
+	int[] credit;
+
+	// packets waiting, per class
+	AtomicIntegerArray depth;
+
+	// time spent waiting in the queue, per class, in us:
+	// total, packets counted, and the longest seen
+	AtomicLongArray waitTotal;
+	AtomicLongArray waitCount;
+	AtomicLongArray waitMax;
+
+	/**
+	 * ctor
+	 * @param size length of each slot buffer in bytes
+	 */
+	public Scheduler(int size) {
+		queues = new SendQueue[ClassCount];
+		for (int i = 0; i < ClassCount; i++) {
+			queues[i] = new SendQueue(Capacity[i], size);
+		}
+		credit = new int[ClassCount];
+		depth = new AtomicIntegerArray(ClassCount);
+		waitTotal = new AtomicLongArray(ClassCount);
+		waitCount = new AtomicLongArray(ClassCount);
+		waitMax = new AtomicLongArray(ClassCount);
+	}
+
+	/**
+	 * choose between strict and weighted priority
+	 * @param strict true to always send the highest class first
+	 */
+	public void setStrict(boolean strict) {
+		this.strict = strict;
+	}
+
+	/**
+	 * @return true if serving by strict priority
+	 */
+	public boolean isStrict() {
+		return strict;
+	}
+
+	/**
+	 * claim a free slot in a class queue
+	 * may be called from any thread; never blocks
+	 * @param cls traffic class
+	 * @param type packet type
+	 * @return free slot, or null if that class queue is full
+	 */
+	public SendQueue.Slot claim(int cls, int type) {
+		SendQueue.Slot slot = queues[cls].claim(type);
+		if (slot != null) {
+			slot.cls = cls;
+		}
+		return slot;
+	}
+
+	/**
+	 * hand a filled slot to the writer
+	 * @param slot slot obtained from claim()
+	 * @param length number of bytes written to the slot buffer
+	 */
+	public void publish(SendQueue.Slot slot, int length) {
+		slot.time = System.nanoTime();
+		depth.incrementAndGet(slot.cls);
+		queues[slot.cls].publish(slot, length);
+	}
+
+	/**
+	 * get the next slot to send
+	 * writer thread only; slot must be recycled after use
+	 * @return filled slot, or null if every queue is empty
+	 */
+	public SendQueue.Slot poll() {
+		return poll(ClassCount - 1);
+	}
+
+	/**
+	 * get the next slot to send from a class at or above 
+	 * the given one, e.g. while video is being held back
+	 * writer thread only; slot must be recycled after use
+	 * @param lowest lowest class to take from
+	 * @return filled slot, or null if those queues are empty
+	 */
+	public SendQueue.Slot poll(int lowest) {
+		SendQueue.Slot slot = strict ? pollStrict(lowest) : pollWeighted(lowest);
+		if (slot != null) {
+			int cls = slot.cls;
+			depth.decrementAndGet(cls);
+			long wait = (System.nanoTime() - slot.time) / 1000;
+			waitTotal.addAndGet(cls, wait);
+			waitCount.incrementAndGet(cls);
+			if (wait > waitMax.get(cls)) {
+				waitMax.set(cls, wait);
+			}
+		}
+		return slot;
+	}
+
+	/**
+	 * return a polled slot to its queue
+	 * writer thread only
+	 * @param slot slot obtained from poll()
+	 */
+	public void recycle(SendQueue.Slot slot) {
+		queues[slot.cls].recycle(slot);
+	}
+
+	/**
+	 * writer thread only
+	 * @return true if no packets are waiting in any class
+	 */
+	public boolean isEmpty() {
+		for (int i = 0; i < ClassCount; i++) {
+			if (!queues[i].isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param cls traffic class
+	 * @return the send queue for a class
+	 */
+	public SendQueue getQueue(int cls) {
+		return queues[cls];
+	}
+
+	/**
+	 * @param cls traffic class
+	 * @return number of packets waiting in the class queue
+	 */
+	public int getDepth(int cls) {
+		return depth.get(cls);
+	}
+
+	/**
+	 * @param cls traffic class
+	 * @return mean time packets have waited to be sent, in ms
+	 */
+	public float getMeanWait(int cls) {
+		long n = waitCount.get(cls);
+		return n == 0 ? 0 : waitTotal.get(cls) / (n * 1000f);
+	}
+
+	/**
+	 * @param cls traffic class
+	 * @return longest time a packet has waited to be sent, in ms
+	 */
+	public float getMaxWait(int cls) {
+		return waitMax.get(cls) / 1000f;
+	}
+
+	/**
+	 * take from the highest class with anything waiting
+	 */
+	SendQueue.Slot pollStrict(int lowest) {
+		for (int i = 0; i <= lowest; i++) {
+			SendQueue.Slot slot = queues[i].poll();
+			if (slot != null) {
+				return slot;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * take from the highest class with anything waiting and
+	 * sends left this round, starting a new round once all
+	 * waiting classes have used up their share
+	 */
+	SendQueue.Slot pollWeighted(int lowest) {
+		for (int round = 0; round < 2; round++) {
+			boolean waiting = false;
+			for (int i = 0; i <= lowest; i++) {
+				if (queues[i].isEmpty()) {
+					continue;
+				}
+				waiting = true;
+				if (credit[i] > 0) {
+					credit[i]--;
+					return queues[i].poll();
+				}
+			}
+			if (!waiting) {
+				return null;
+			}
+			for (int i = 0; i < ClassCount; i++) {
+				credit[i] = Weight[i];
+			}
+		}
+		return null;
+	}
+}
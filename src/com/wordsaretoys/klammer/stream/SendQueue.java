@@ -0,0 +1,171 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * bounded lock-free queue of pooled packet slots
+ *
+ * any number of producer threads (camera, recorder) claim
+ * free slots, fill them and publish them; a single consumer
+ * thread (the packet writer) drains them. a full queue drops
+ * the new packet rather than blocking the producer. after
+ * the bounded MPMC array queue described by Dmitry Vyukov.
+ */
+public class SendQueue {
+
+	/**
+	 * pooled packet slot
+	 */
+	public static class Slot {
+
+		// slot buffer, direct so the channel can send
+		// straight from it without a native copy
+		public ByteBuffer data;
+
+		// packet length
+		public int length;
+
+		// packet type
+		public int type;
+
+		// traffic class, when queued by a Scheduler
+		int cls;
+
+		// time the slot was published, in ns
+		long time;
+
+		// owner's entry generation, when queued by a PeerTable
+		int generation;
+
+		// queue position, used to recycle the slot
+		long position;
+
+		Slot(int size) {
+			data = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	// slot array and per-slot sequence numbers
+	Slot[] slots;
+	AtomicLongArray sequence;
+
+	// capacity - 1, capacity is a power of two
+	int mask;
+
+	// next position to write (shared by producers)
+	AtomicLong tail = new AtomicLong();
+
+	// next position to read (consumer only)
+	long head;
+
+	// per-type counters
+	AtomicLongArray offered = new AtomicLongArray(Network.TypeCount);
+	AtomicLongArray dropped = new AtomicLongArray(Network.TypeCount);
+
+	/**
+	 * ctor
+	 * @param capacity number of slots, rounded up to a power of two
+	 * @param size length of each slot buffer in bytes
+	 */
+	public SendQueue(int capacity, int size) {
+		int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = n - 1;
+		slots = new Slot[n];
+		sequence = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++) {
+			slots[i] = new Slot(size);
+			sequence.set(i, i);
+		}
+	}
+
+	/**
+	 * claim the next free slot for filling
+	 * may be called from any thread; never blocks. the caller
+	 * owns the slot until it passes it to publish().
+	 *
+	 * @param type packet type
+	 * @return free slot, or null if the queue is full
+	 */
+	public Slot claim(int type) {
+		offered.incrementAndGet(type);
+		for (;;) {
+			long pos = tail.get();
+			int i = (int)(pos & mask);
+			long diff = sequence.get(i) - pos;
+			if (diff == 0) {
+				// slot is free; try to claim it
+				if (tail.compareAndSet(pos, pos + 1)) {
+					Slot slot = slots[i];
+					slot.data.clear();
+					slot.type = type;
+					slot.position = pos;
+					return slot;
+				}
+			} else if (diff < 0) {
+				// consumer hasn't recycled this slot yet: full
+				dropped.incrementAndGet(type);
+				return null;
+			}
+			// otherwise another producer beat us to it, so retry
+		}
+	}
+
+	/**
+	 * hand a filled slot to the consumer
+	 * @param slot slot obtained from claim()
+	 * @param length number of bytes written to the slot buffer
+	 */
+	public void publish(Slot slot, int length) {
+		slot.length = length;
+		sequence.set((int)(slot.position & mask), slot.position + 1);
+	}
+
+	/**
+	 * get the next filled slot, if any
+	 * consumer thread only; slot must be recycled after use
+	 * @return filled slot, or null if queue is empty
+	 */
+	public Slot poll() {
+		int i = (int)(head & mask);
+		if (sequence.get(i) - (head + 1) < 0) {
+			return null;
+		}
+		head++;
+		return slots[i];
+	}
+
+	/**
+	 * return a polled slot to the free pool
+	 * consumer thread only
+	 * @param slot slot obtained from poll()
+	 */
+	public void recycle(Slot slot) {
+		sequence.set((int)(slot.position & mask), slot.position + slots.length);
+	}
+
+	/**
+	 * consumer thread only
+	 * @return true if there are no filled slots waiting
+	 */
+	public boolean isEmpty() {
+		return sequence.get((int)(head & mask)) - (head + 1) < 0;
+	}
+
+	/**
+	 * @param type packet type
+	 * @return number of slots requested
+	 */
+	public long getOffered(int type) {
+		return offered.get(type);
+	}
+
+	/**
+	 * @param type packet type
+	 * @return number of packets dropped because the queue was full
+	 */
+	public long getDropped(int type) {
+		return dropped.get(type);
+	}
+}
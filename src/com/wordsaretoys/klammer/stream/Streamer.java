@@ -1,7 +1,12 @@
 package com.wordsaretoys.klammer.stream;
 
+import java.nio.ByteBuffer;
+
 import android.app.Activity;
 import android.content.Context;
+import android.os.SystemClock;
+
+import com.wordsaretoys.klammer.util.Logg;
 
 /**
  * provides streaming services for audio, 
@@ -17,6 +22,8 @@ public class Streamer {
 	 */
 	public interface Listener {
 		public void onTermination();
+		public void onPeerLost();
+		public void onPeerFound();
 	}
 	
 	// supplied listener
@@ -41,8 +48,49 @@ public class Streamer {
 	 * ctor, creates child objects
 	 */
 	public Streamer() {
+		this(null);
+	}
+	
+	/**
+	 * ctor, creates child objects
+	 * @param transport datagram transport for the network, 
+	 * or null to use a UDP socket
+	 */
+	public Streamer(Transport transport) {
 		
-		network = new Network(this) {
+		network = new Network(transport, new Network.Clock() {
+			@Override
+			public long getTime() {
+				return SystemClock.elapsedRealtime();
+			}
+		}, new Network.Logger() {
+			@Override
+			public void d(String tag, String msg) {
+				Logg.d(tag, msg);
+			}
+		}, new Network.Sink() {
+			@Override
+			public void onAudio(ByteBuffer data, int timestamp, int arrival) {
+				audio.handlePacket(data, timestamp, arrival);
+			}
+			@Override
+			public boolean onVideo(ByteBuffer data) {
+				return video.handlePacket(data);
+			}
+			@Override
+			public void onVideoConfig(ByteBuffer data) {
+				video.handleConfig(data);
+			}
+			@Override
+			public void onVideoIdle() {
+				codecs.drainVideoDecoder();
+			}
+			@Override
+			public void onSourceChanged() {
+				audio.getJitterBuffer().reset();
+				codecs.resetVideoDecoderConfig();
+			}
+		}) {
 			@Override
 			protected void onConnection() {
 				
@@ -55,6 +103,22 @@ public class Streamer {
 					}
 				});
 			}
+			@Override
+			protected void onPeerLost() {
+				((Activity)context).runOnUiThread(new Runnable() {
+					public void run() {
+						listener.onPeerLost();
+					}
+				});
+			}
+			@Override
+			protected void onPeerFound() {
+				((Activity)context).runOnUiThread(new Runnable() {
+					public void run() {
+						listener.onPeerFound();
+					}
+				});
+			}
 		};
 
 		video = new Video(this) {
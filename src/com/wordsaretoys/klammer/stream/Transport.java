@@ -0,0 +1,39 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * carries datagrams for the network object
+ * 
+ * the real thing is a UDP channel, but anything that can
+ * move datagrams will do, e.g. an in-memory loopback for
+ * running the media path without two phones, perhaps with
+ * an impairment wrapper around it.
+ * 
+ * receive() is called from the reader thread only, and
+ * send() from the writer thread only.
+ */
+public interface Transport {
+
+	/**
+	 * wait for a datagram
+	 * @param dst buffer to receive into, from its position
+	 * @return address the datagram came from
+	 */
+	public InetSocketAddress receive(ByteBuffer dst) throws IOException;
+	
+	/**
+	 * send a datagram
+	 * @param src datagram, from position to limit
+	 * @param target address to send to
+	 */
+	public void send(ByteBuffer src, InetSocketAddress target) throws IOException;
+	
+	/**
+	 * release the transport; blocked and later calls
+	 * to receive() and send() throw an IOException
+	 */
+	public void close() throws IOException;
+}
@@ -1,6 +1,7 @@
 package com.wordsaretoys.klammer.stream;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.app.Activity;
 import android.graphics.ImageFormat;
@@ -12,8 +13,10 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 import com.wordsaretoys.klammer.R;
+import com.wordsaretoys.klammer.util.BandPool;
 import com.wordsaretoys.klammer.util.Logg;
-import com.wordsaretoys.klammer.util.Misc;
+import com.wordsaretoys.klammer.util.YuvConverter;
+import com.wordsaretoys.klammer.util.YuvLayout;
 
 /**
  * handles camera control and local/remote video displays
@@ -40,6 +43,22 @@ public class Video {
 	// hardware id of active camera
 	int cameraId;
 	
+	// earliest time the next frame should be sent
+	int nextFrameTime;
+	
+	// rotated frame on its way to the encoder, leased 
+	// from the buffer pool while the camera is open
+	BufferPool.Buffer convert;
+	
+	// layout of the frames the encoder takes, which changes
+	// with the rung of the resolution ladder; camera thread only
+	YuvLayout outLayout;
+	
+	// threads for converting large frames, and the
+	// converter that runs on them
+	BandPool bandPool;
+	YuvConverter converter;
+	
 	/**
 	 * ctor
 	 * @param streamer parent object
@@ -122,15 +141,26 @@ public class Video {
 
 		streamer.getCodecs().acquireVideoEncoder(width, height);
 		
+		// camera buffers have padded rows; the encoder
+		// wants packed I420, at full size to begin with
+		final YuvLayout inLayout = YuvLayout.createYV12(width, height);
+		outLayout = YuvLayout.createI420(
+				streamer.getCodecs().getVideoWidth(), 
+				streamer.getCodecs().getVideoHeight());
+		
+		bandPool = new BandPool(BandPool.getDefaultThreads());
+		converter = new YuvConverter(bandPool);
+		
 		// preload camera with two buffers
-		int sz = Misc.getYV12BufferSize(width, height);
+		int sz = inLayout.size;
 		camera.addCallbackBuffer(new byte[sz]);
 		camera.addCallbackBuffer(new byte[sz]);
 		
 		camera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
-			byte[] cb;
 			@Override
 			public void onPreviewFrame(byte[] data, Camera camera) {
+				long time = streamer.getNetwork().getTime();
+				int stamp = (int) time;
 				// get current rotation and apply to camera
 				int rotation = getRotation();
 				try {
@@ -138,17 +168,34 @@ public class Video {
 				} catch (RuntimeException e) {
 					// preview frame may be called after camera release
 				}
-				// if peer is available
-				if (streamer.getNetwork().isReady()) {
+				// if peer is available, and we're not skipping
+				// this frame to keep to the target frame rate
+				if (streamer.getNetwork().isStreaming() && isFrameDue(stamp)) {
+					// follow the rate controller, which may move
+					// the encoder to another rung of the ladder
+					Codecs codecs = streamer.getCodecs();
+					RateController rc = streamer.getNetwork().getRateController();
+					codecs.retuneVideoEncoder(
+							rc.getBitRate(), rc.getFrameRate(), rc.getScale());
+					if (outLayout.width != codecs.getVideoWidth() || 
+							outLayout.height != codecs.getVideoHeight()) {
+						outLayout = YuvLayout.createI420(
+								codecs.getVideoWidth(), codecs.getVideoHeight());
+					}
 					// give me a conversion buffer if I don't have one
-					if (cb == null || cb.length != data.length) {
-						cb = new byte[data.length];
+					if (convert == null || convert.data.capacity() < outLayout.size) {
+						if (convert != null) {
+							convert.release();
+						}
+						convert = BufferPool.getShared().lease(outLayout.size);
 					}
-					// rotate image and flip UV planes
-					Misc.rotateY12toYUV420(data, cb, width, height, rotation);
-					// encode and transmit 
-					int outlen = streamer.getCodecs().encodeVideoFrame(cb, data);
-					streamer.getNetwork().sendVideoFrame(data, outlen);
+					byte[] cb = convert.array();
+					// rotate image, shrink it to the rung's size,
+					// and pack it as I420
+					converter.rotateYuv(data, inLayout, cb, outLayout, rotation);
+					// hand it to the encoder; it comes back out
+					// through onEncodedFrame() when it's ready
+					codecs.encodeVideoFrame(cb, outLayout.size, time);
 				}
 				// hand the buffer back from another go
 				camera.addCallbackBuffer(data);
@@ -158,6 +205,26 @@ public class Video {
 		preview.bringToFront();
 	}
 	
+	/**
+	 * decides whether to send a frame or skip it to bring
+	 * the camera frame rate down to the target frame rate
+	 * @param stamp capture time of the frame
+	 * @return true if the frame should be sent
+	 */
+	private boolean isFrameDue(int stamp) {
+		int interval = 1000 / streamer.getNetwork().getRateController().getFrameRate();
+		// allow a little early, as camera frame times wobble
+		if (stamp - nextFrameTime < -interval / 8) {
+			return false;
+		}
+		nextFrameTime += interval;
+		// don't try to catch up after a long gap
+		if (stamp - nextFrameTime > interval) {
+			nextFrameTime = stamp + interval;
+		}
+		return true;
+	}
+	
 	/**
 	 * tracks display rotation state
 	 */
@@ -190,13 +257,56 @@ public class Video {
 		camera.stopPreview();
 		camera.release();
 		streamer.getCodecs().releaseVideoCodecs();
+		if (convert != null) {
+			convert.release();
+			convert = null;
+		}
+		if (bandPool != null) {
+			bandPool.close();
+			bandPool = null;
+		}
+	}
+
+	/**
+	 * transmit a frame from the video encoder, with the codec
+	 * config ahead of each keyframe for anyone who missed it
+	 * called on the encoder's drain thread
+	 * @param data encoded frame data
+	 * @param length length of the frame in bytes
+	 * @param time capture time of the frame from Network.getTime()
+	 * @param keyFrame true if the frame is a keyframe
+	 */
+	public void onEncodedFrame(byte[] data, int length, long time, boolean keyFrame) {
+		Network network = streamer.getNetwork();
+		if (!network.isStreaming()) {
+			return;
+		}
+		if (keyFrame) {
+			network.sendVideoConfig(streamer.getCodecs().getVideoConfig());
+		}
+		if (!network.sendVideoFrame(data, length, time)) {
+			// the peer can't decode past a missing frame, 
+			// so get it a fresh start as soon as we can
+			streamer.getCodecs().requestVideoKeyFrame();
+		}
 	}
 
 	/**
 	 * handle video frame packet
+	 * @param data frame data, from position to limit
+	 * @return false if the frame couldn't be decoded 
+	 * for want of codec config data
+	 */
+	public boolean handlePacket(ByteBuffer data) {
+		return streamer.getCodecs().decodeVideoData(data);
+	}
+	
+	/**
+	 * handle video codec config packet
+	 * @param data config data, from position to limit
 	 */
-	public void handlePacket(byte[] data, int length) {
-		streamer.getCodecs().decodeVideoData(data, length);
+	public void handleConfig(ByteBuffer data) {
+		streamer.getCodecs().setVideoDecoderConfig(data);
 	}
 
 	/**
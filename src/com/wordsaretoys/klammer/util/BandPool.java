@@ -0,0 +1,239 @@
+package com.wordsaretoys.klammer.util;
+
+/**
+ * small fixed pool of threads for splitting image work into
+ * bands of rows
+ *
+ * the calling thread does the first band itself and waits
+ * for the workers to finish the rest. splitting doesn't pay
+ * for small frames, so whether to split is settled by timing:
+ * the first few runs of each job at each size alternate
+ * between serial and parallel, and the faster one is kept
+ * from then on.
+ *
+ * one calling thread at a time.
+ */
+public class BandPool {
+
+	/**
+	 * work that can be split into bands
+	 */
+	public interface Job {
+		/**
+		 * do one band of the work
+		 * @param from first unit of the band
+		 * @param to unit after the last
+		 */
+		void run(int from, int to);
+	}
+
+	// runs timed each way before deciding
+	static int CalibrationRuns = 8;
+
+	// most jobs and sizes to remember decisions for
+	static int Decisions = 4;
+
+	// worker threads
+	Worker[] workers;
+
+	// job being split, and its size in units
+	Job job;
+	int units;
+
+	// workers still busy with the current job
+	int pending;
+
+	// decisions: job and size, time spent and runs made
+	// each way, and the next entry to replace
+	Job[] decisionJob;
+	int[] decisionSize;
+	long[] serialTime, parallelTime;
+	int[] serialRuns, parallelRuns;
+	int nextDecision;
+
+	/**
+	 * get a thread count suited to the device, leaving the
+	 * calling thread a core of its own
+	 * @return number of worker threads, 0 - 3
+	 */
+	public static int getDefaultThreads() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		return Math.max(0, Math.min(3, cores - 1));
+	}
+
+	/**
+	 * ctor
+	 * @param threads number of worker threads
+	 */
+	public BandPool(int threads) {
+		workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(i + 1);
+			workers[i].start();
+		}
+		decisionJob = new Job[Decisions];
+		decisionSize = new int[Decisions];
+		serialTime = new long[Decisions];
+		parallelTime = new long[Decisions];
+		serialRuns = new int[Decisions];
+		parallelRuns = new int[Decisions];
+	}
+
+	/**
+	 * do a job, split into bands or not, whichever has
+	 * proven faster for the job at this size
+	 * @param job job to do
+	 * @param units number of units of work, e.g. rows
+	 * @param size measure of the work, e.g. pixels
+	 */
+	public void run(Job job, int units, int size) {
+		if (workers.length == 0 || units <= workers.length) {
+			job.run(0, units);
+			return;
+		}
+		int d = findDecision(job, size);
+		boolean calibrating = serialRuns[d] < CalibrationRuns ||
+				parallelRuns[d] < CalibrationRuns;
+		boolean parallel;
+		if (calibrating) {
+			parallel = parallelRuns[d] < serialRuns[d];
+		} else {
+			parallel = parallelTime[d] < serialTime[d];
+		}
+		long start = calibrating ? System.nanoTime() : 0;
+		if (parallel) {
+			runParallel(job, units);
+		} else {
+			job.run(0, units);
+		}
+		if (calibrating) {
+			long time = System.nanoTime() - start;
+			if (parallel) {
+				parallelTime[d] += time;
+				parallelRuns[d]++;
+			} else {
+				serialTime[d] += time;
+				serialRuns[d]++;
+			}
+			if (serialRuns[d] == CalibrationRuns && parallelRuns[d] == CalibrationRuns) {
+				Logg.d("BandPool", "size " + size + " runs " +
+						(parallelTime[d] < serialTime[d] ? "parallel" : "serial"));
+			}
+		}
+	}
+
+	/**
+	 * do a job split into bands, regardless of size
+	 * @param job job to do
+	 * @param units number of units of work, e.g. rows
+	 */
+	public void runParallel(Job job, int units) {
+		int bands = workers.length + 1;
+		synchronized (this) {
+			this.job = job;
+			this.units = units;
+			pending = workers.length;
+		}
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].resume();
+		}
+		job.run(0, units / bands);
+		synchronized (this) {
+			while (pending > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			this.job = null;
+		}
+	}
+
+	/**
+	 * @param job job to check
+	 * @param size measure of the work
+	 * @return true if the job has been found to run faster split
+	 */
+	public boolean isParallel(Job job, int size) {
+		for (int i = 0; i < Decisions; i++) {
+			if (decisionJob[i] == job && decisionSize[i] == size) {
+				return serialRuns[i] >= CalibrationRuns &&
+						parallelRuns[i] >= CalibrationRuns &&
+						parallelTime[i] < serialTime[i];
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * stop the worker threads
+	 */
+	public void close() {
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].stop();
+		}
+	}
+
+	/**
+	 * find the decision entry for a job and size,
+	 * starting a new one if there's none
+	 */
+	int findDecision(Job job, int size) {
+		for (int i = 0; i < Decisions; i++) {
+			if (decisionJob[i] == job && decisionSize[i] == size) {
+				return i;
+			}
+		}
+		int d = nextDecision;
+		nextDecision = (nextDecision + 1) % Decisions;
+		decisionJob[d] = job;
+		decisionSize[d] = size;
+		serialTime[d] = parallelTime[d] = 0;
+		serialRuns[d] = parallelRuns[d] = 0;
+		return d;
+	}
+
+	/**
+	 * called by a worker when its band is done
+	 */
+	synchronized void done() {
+		if (--pending == 0) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * band worker thread class
+	 */
+	class Worker extends Needle {
+
+		// band this worker does
+		int band;
+
+		public Worker(int band) {
+			super("band-" + band, 1);
+			this.band = band;
+		}
+
+		@Override
+		public void run() {
+			while (inPump()) {
+				Job j;
+				int n;
+				synchronized (BandPool.this) {
+					j = job;
+					n = units;
+				}
+				if (j != null) {
+					int bands = workers.length + 1;
+					j.run(n * band / bands, n * (band + 1) / bands);
+				}
+				// pause before reporting in, so the next resume
+				// can't come before the pause and be lost
+				pause();
+				done();
+			}
+		}
+	}
+}
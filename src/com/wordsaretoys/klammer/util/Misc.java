@@ -6,9 +6,38 @@ package com.wordsaretoys.klammer.util;
  */
 public class Misc {
 
+	// colour conversion terms, for each 8-bit sample value: 
+	// luma, red from V, green from V and U, blue from U. the
+	// constants are the usual floating point ones times 1024,
+	// so sums are shifted right by 10 to get 8-bit values
+	static final int[] LumaTerm = new int[256];
+	static final int[] RedV = new int[256];
+	static final int[] GreenV = new int[256];
+	static final int[] GreenU = new int[256];
+	static final int[] BlueU = new int[256];
+	
+	// shifted sums clamped to 0 - 255, indexed from ClampOffset,
+	// which covers every sum the terms above can make
+	static final int ClampOffset = 384;
+	static final int[] Clamp = new int[1024];
+	
+	static {
+		for (int i = 0; i < 256; i++) {
+			// luma below 16 is black
+			LumaTerm[i] = 1192 * (Math.max(i, 16) - 16);
+			RedV[i] = 1634 * (i - 128);
+			GreenV[i] = 832 * (i - 128);
+			GreenU[i] = 400 * (i - 128);
+			BlueU[i] = 2066 * (i - 128);
+		}
+		for (int i = 0; i < Clamp.length; i++) {
+			Clamp[i] = Math.max(0, Math.min(255, i - ClampOffset));
+		}
+	}
+	
 	/**
 	 * convert an NV21 preview frame to ARGB format
-	 * taken from http://stackoverflow.com/questions/12469730/confusion-on-yuv-nv21-conversion-to-rgb
+	 * originally from http://stackoverflow.com/questions/12469730/confusion-on-yuv-nv21-conversion-to-rgb
 	 * 
 	 * @param argb
 	 * @param yuv
@@ -16,48 +45,129 @@ public class Misc {
 	 * @param height
 	 */
 	public static void YUV_NV21_TO_RGB(int[] argb, byte[] yuv, int width, int height) {
-	    final int frameSize = width * height;
-
-	    final int ii = 0;
-	    final int ij = 0;
-	    final int di = +1;
-	    final int dj = +1;
-
-	    int a = 0;
-	    for (int i = 0, ci = ii; i < height; ++i, ci += di) {
-	        for (int j = 0, cj = ij; j < width; ++j, cj += dj) {
-	            int y = (0xff & ((int) yuv[ci * width + cj]));
-	            int v = (0xff & ((int) yuv[frameSize + (ci >> 1) * width + (cj & ~1) + 0]));
-	            int u = (0xff & ((int) yuv[frameSize + (ci >> 1) * width + (cj & ~1) + 1]));
-	            y = y < 16 ? 16 : y;
-
-/*	            
-	            int r = (int) (1.164f * (y - 16) + 1.596f * (v - 128));
-	            int g = (int) (1.164f * (y - 16) - 0.813f * (v - 128) - 0.391f * (u - 128));
-	            int b = (int) (1.164f * (y - 16) + 2.018f * (u - 128));
-*/
-
-	            // removed original FP conversions for performance reasons
-	            // switching to scaled integer improved things a lot
-	            // constants are original FP constants times 1024
-	            // bit shfting right by 10 is a FAST divide by 1024 
-	            int a0 = 1192 * (y - 16);
-	            int a1 = 1634 * (v - 128);
-	            int a2 = 832 * (v - 128);
-	            int a3 = 400 * (u - 128);
-	            int a4 = 2066 * (u - 128);
-	            
-	            int r = (a0 + a1) >> 10;
-	            int g = (a0 - a2 - a3) >> 10;
-	            int b = (a0 + a4) >> 10;
-	            
-	            r = r < 0 ? 0 : (r > 255 ? 255 : r);
-	            g = g < 0 ? 0 : (g > 255 ? 255 : g);
-	            b = b < 0 ? 0 : (b > 255 ? 255 : b);
-
-	            argb[a++] = 0xff000000 | (r << 16) | (g << 8) | b;
-	        }
-	    }
+		YUV_NV21_TO_RGB(argb, yuv, YuvLayout.createNV21(width, height), 1);
+	}
+	
+	/**
+	 * convert a YUV 4:2:0 frame of any layout to ARGB format
+	 */
+	public static void YUV_NV21_TO_RGB(int[] argb, byte[] yuv, YuvLayout layout) {
+		YUV_NV21_TO_RGB(argb, yuv, layout, 1);
+	}
+	
+	/**
+	 * convert a YUV 4:2:0 frame of any layout to ARGB format,
+	 * optionally scaled down, e.g. for a thumbnail
+	 * 
+	 * the conversion goes by 2x2 blocks, working out the
+	 * chroma terms once for the four pixels that share them.
+	 * scaled down, each pixel is the average of its block.
+	 * 
+	 * @param argb output, width / scale by height / scale pixels
+	 * @param yuv input frame
+	 * @param layout layout of the input frame
+	 * @param scale 1 for full size, 2 for half, 4 for quarter
+	 */
+	public static void YUV_NV21_TO_RGB(int[] argb, byte[] yuv, YuvLayout layout, int scale) {
+		if (scale > 1) {
+			scaleYuvToArgb(argb, yuv, layout, scale);
+			return;
+		}
+		int w = layout.width, h = layout.height;
+		int vo = layout.vOffset, uo = layout.uOffset, step = layout.uvStep;
+		for (int i = 0; i < h; i += 2) {
+			boolean pair = i + 1 < h;
+			int y0 = layout.yOffset + i * layout.yStride;
+			int y1 = y0 + layout.yStride;
+			int a0 = i * w;
+			int a1 = a0 + w;
+			int c = (i >> 1) * layout.uvStride;
+			for (int j = 0; j < w; j += 2, c += step) {
+				int v = yuv[vo + c] & 0xff;
+				int u = yuv[uo + c] & 0xff;
+				int rv = RedV[v];
+				int guv = GreenV[v] + GreenU[u];
+				int bu = BlueU[u];
+				argb[a0 + j] = toArgb(LumaTerm[yuv[y0 + j] & 0xff], rv, guv, bu);
+				if (pair) {
+					argb[a1 + j] = toArgb(LumaTerm[yuv[y1 + j] & 0xff], rv, guv, bu);
+				}
+				if (j + 1 < w) {
+					argb[a0 + j + 1] = toArgb(LumaTerm[yuv[y0 + j + 1] & 0xff], rv, guv, bu);
+					if (pair) {
+						argb[a1 + j + 1] = toArgb(LumaTerm[yuv[y1 + j + 1] & 0xff], rv, guv, bu);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * convert with box averaging down to 1/scale size
+	 */
+	static void scaleYuvToArgb(int[] argb, byte[] yuv, YuvLayout layout, int scale) {
+		if (scale == 2) {
+			halveYuvToArgb(argb, yuv, layout);
+			return;
+		}
+		int w = layout.width / scale, h = layout.height / scale;
+		int cs = scale >> 1;
+		int area = scale * scale, carea = cs * cs;
+		int a = 0;
+		for (int i = 0; i < h; i++) {
+			for (int j = 0; j < w; j++) {
+				int ys = 0;
+				for (int k = 0; k < scale; k++) {
+					int p = layout.yOffset + (i * scale + k) * layout.yStride + j * scale;
+					for (int l = 0; l < scale; l++) {
+						ys += yuv[p + l] & 0xff;
+					}
+				}
+				int vs = 0, us = 0;
+				for (int k = 0; k < cs; k++) {
+					int c = (i * cs + k) * layout.uvStride + j * cs * layout.uvStep;
+					for (int l = 0; l < cs; l++, c += layout.uvStep) {
+						vs += yuv[layout.vOffset + c] & 0xff;
+						us += yuv[layout.uOffset + c] & 0xff;
+					}
+				}
+				int y = (ys + area / 2) / area;
+				int v = (vs + carea / 2) / carea;
+				int u = (us + carea / 2) / carea;
+				argb[a++] = toArgb(LumaTerm[y], RedV[v], GreenV[v] + GreenU[u], BlueU[u]);
+			}
+		}
+	}
+	
+	/**
+	 * convert to half size, one pixel per 2x2 block
+	 */
+	static void halveYuvToArgb(int[] argb, byte[] yuv, YuvLayout layout) {
+		int w = layout.width >> 1, h = layout.height >> 1;
+		int step = layout.uvStep;
+		int a = 0;
+		for (int i = 0; i < h; i++) {
+			int y0 = layout.yOffset + 2 * i * layout.yStride;
+			int y1 = y0 + layout.yStride;
+			int c = i * layout.uvStride;
+			for (int j = 0; j < 2 * w; j += 2, c += step) {
+				int y = ((yuv[y0 + j] & 0xff) + (yuv[y0 + j + 1] & 0xff) + 
+						(yuv[y1 + j] & 0xff) + (yuv[y1 + j + 1] & 0xff) + 2) >> 2;
+				int v = yuv[layout.vOffset + c] & 0xff;
+				int u = yuv[layout.uOffset + c] & 0xff;
+				argb[a++] = toArgb(LumaTerm[y], RedV[v], GreenV[v] + GreenU[u], BlueU[u]);
+			}
+		}
+	}
+	
+	/**
+	 * make an ARGB pixel from its conversion terms
+	 */
+	static int toArgb(int luma, int rv, int guv, int bu) {
+		return 0xff000000 | 
+				(Clamp[((luma + rv) >> 10) + ClampOffset] << 16) |
+				(Clamp[((luma - guv) >> 10) + ClampOffset] << 8) |
+				Clamp[((luma + bu) >> 10) + ClampOffset];
 	}
 	
 	/*
@@ -68,31 +178,364 @@ public class Misc {
 		 * COLOR_FormatYUV420Planar is I420 which is like YV12, but with U and V reversed.
 		 * So we just have to reverse U and V.
 		 */
-		final int frameSize = width * height;
-		final int qFrameSize = frameSize >> 2;
-		
-		System.arraycopy(input, 0, output, 0, frameSize); // Y
-		System.arraycopy(input, frameSize, output, frameSize + qFrameSize, qFrameSize); // Cr (V)
-		System.arraycopy(input, frameSize + qFrameSize, output, frameSize, qFrameSize); // Cb (U)
-		
+		convertYuv(input, YuvLayout.createPackedYV12(width, height), 
+				output, YuvLayout.createI420(width, height));
 		return output;
 	}
 	
+	/**
+	 * copy a YUV 4:2:0 frame from one layout to another, e.g. 
+	 * a padded YV12 camera buffer to packed I420, in one pass
+	 */
+	public static void convertYuv(byte[] input, YuvLayout in, byte[] output, YuvLayout out) {
+		convertYuv(input, in, output, out, 0, in.height >> 1);
+	}
+	
+	/**
+	 * copy a band of a YUV 4:2:0 frame from one layout to another
+	 * @param from first pair of rows in the band
+	 * @param to pair of rows after the last
+	 */
+	public static void convertYuv(byte[] input, YuvLayout in, byte[] output, YuvLayout out, int from, int to) {
+		int w = in.width;
+		for (int y = from * 2; y < to * 2; y++) {
+			System.arraycopy(input, in.yOffset + y * in.yStride, 
+					output, out.yOffset + y * out.yStride, w);
+		}
+		int hw = w >> 1;
+		if (in.uvStep == 1 && out.uvStep == 1) {
+			for (int y = from; y < to; y++) {
+				System.arraycopy(input, in.uOffset + y * in.uvStride, 
+						output, out.uOffset + y * out.uvStride, hw);
+				System.arraycopy(input, in.vOffset + y * in.uvStride, 
+						output, out.vOffset + y * out.uvStride, hw);
+			}
+			return;
+		}
+		for (int y = from; y < to; y++) {
+			int i = y * in.uvStride, o = y * out.uvStride;
+			for (int x = 0; x < hw; x++, i += in.uvStep, o += out.uvStep) {
+				output[out.uOffset + o] = input[in.uOffset + i];
+				output[out.vOffset + o] = input[in.vOffset + i];
+			}
+		}
+	}
+	
 	/**
 	 * return size of a YV12 buffer for the given dimensions
 	 */
 	public static int getYV12BufferSize(int width, int height) {
-		int yStride = (int) Math.ceil(width / 16.0) * 16;
-		int uvStride = (int) Math.ceil( (yStride / 2) / 16.0) * 16;
-		int ySize = yStride * height;
-		int uvSize = uvStride * height / 2;
-		return ySize + uvSize * 2;		
+		return YuvLayout.createYV12(width, height).size;
 	}
 
 	/**
-	 * stretch-copy a YUV image with UV swapping and rotation
+	 * index tables for a rotation, built once per input
+	 * layout and rotation and reused after that
+	 */
+	static class RotationTables {
+		YuvLayout layout;
+		int rotation;
+		// input offset for each output column, and for each
+		// output row, for the Y plane; a sample comes from the
+		// sum of the two
+		int[] yX, yY;
+		// the same for the U and V planes
+		int[] cX, cY;
+		
+		RotationTables(YuvLayout layout, int rotation) {
+			this.layout = layout;
+			this.rotation = rotation;
+			int width = layout.width, height = layout.height;
+			boolean swap = rotation == 90 || rotation == 270;
+			boolean flip = rotation == 90 || rotation == 180;
+			int hw = width >> 1, hh = height >> 1;
+			yX = new int[width];
+			yY = new int[height];
+			cX = new int[hw];
+			cY = new int[hh];
+			// each chroma sample takes its value from the last
+			// of its 2x2 block of luma samples
+			if (swap) {
+				for (int x = 0; x < width; x++) {
+					yX[x] = layout.yStride * swapRow(x, width, height, flip);
+				}
+				for (int y = 0; y < height; y++) {
+					yY[y] = swapCol(y, width, height, flip);
+				}
+				for (int x = 0; x < hw; x++) {
+					cX[x] = layout.uvStride * (swapRow(2 * x + 1, width, height, flip) >> 1);
+				}
+				for (int y = 0; y < hh; y++) {
+					cY[y] = layout.uvStep * (swapCol(2 * y + 1, width, height, flip) >> 1);
+				}
+			} else {
+				for (int x = 0; x < width; x++) {
+					yX[x] = flip ? width - 1 - x : x;
+				}
+				for (int y = 0; y < height; y++) {
+					yY[y] = layout.yStride * (flip ? height - 1 - y : y);
+				}
+				for (int x = 0; x < hw; x++) {
+					cX[x] = layout.uvStep * (flip ? hw - 1 - x : x);
+				}
+				for (int y = 0; y < hh; y++) {
+					cY[y] = layout.uvStride * (flip ? hh - 1 - y : y);
+				}
+			}
+		}
+		
+		/**
+		 * @return true if the tables serve this layout and rotation
+		 */
+		boolean fits(YuvLayout in, int rotation) {
+			return this.rotation == rotation &&
+					layout.width == in.width && layout.height == in.height &&
+					layout.yStride == in.yStride && layout.uvStride == in.uvStride &&
+					layout.uvStep == in.uvStep;
+		}
+		
+		static int swapRow(int xo, int w, int h, boolean flip) {
+			int yi = h * xo / w;
+			return flip ? h - yi - 1 : yi;
+		}
+		
+		static int swapCol(int yo, int w, int h, boolean flip) {
+			int xi = w * yo / h;
+			return flip ? w - xi - 1 : xi;
+		}
+	}
+	
+	// tables for the last rotation done through them
+	static volatile RotationTables rotationTables;
+	
+	/**
+	 * stretch-copy a packed YV12 image to I420 with rotation
 	 */
 	public static void rotateY12toYUV420(byte[] input, byte[] output, int width, int height, int rotation) {
+		if ((width & 1) != 0 || (height & 1) != 0) {
+			rotateY12toYUV420Odd(input, output, width, height, rotation);
+			return;
+		}
+		rotateYuv(input, YuvLayout.createPackedYV12(width, height), 
+				output, YuvLayout.createI420(width, height), rotation);
+	}
+	
+	/**
+	 * stretch-copy a YUV 4:2:0 image from one layout to 
+	 * another with rotation, in one pass
+	 * 
+	 * the image keeps its dimensions, so a 90 or 270 degree 
+	 * rotation stretches it to fit. each rotation has its own
+	 * kernel, working along output rows, with the Y plane and 
+	 * the half size U and V planes done separately. dimensions
+	 * must be even.
+	 * 
+	 * the output may also be smaller than the input by a whole
+	 * factor in both dimensions, e.g. half or a quarter the size
+	 * (see YuvLayout.scaleDimension()), and each output sample
+	 * is then the box average of the input samples it covers.
+	 */
+	public static void rotateYuv(byte[] input, YuvLayout in, byte[] output, YuvLayout out, int rotation) {
+		rotateYuv(input, in, output, out, rotation, 0, out.height >> 1);
+	}
+	
+	/**
+	 * stretch-copy a band of a YUV 4:2:0 image with rotation;
+	 * bands may be done on different threads at once
+	 * @param from first pair of output rows in the band
+	 * @param to pair of output rows after the last
+	 */
+	public static void rotateYuv(byte[] input, YuvLayout in, byte[] output, YuvLayout out, 
+			int rotation, int from, int to) {
+		int scale = in.width / out.width;
+		if (scale == 2) {
+			rotateHalved(input, in, output, out, 
+					getRotationTables(in, rotation), from, to);
+			return;
+		}
+		if (scale > 2) {
+			rotateScaled(input, in, output, out, 
+					getRotationTables(in, rotation), scale, from, to);
+			return;
+		}
+		switch (rotation) {
+		case 90:
+		case 270:
+			rotateSwapped(input, in, output, out, 
+					getRotationTables(in, rotation), from, to);
+			break;
+		case 180:
+			rotate180(input, in, output, out, from, to);
+			break;
+		default:
+			convertYuv(input, in, output, out, from, to);
+			break;
+		}
+	}
+	
+	/**
+	 * get the index tables for a rotation, building them if
+	 * they aren't the ones last used
+	 */
+	static RotationTables getRotationTables(YuvLayout in, int rotation) {
+		RotationTables t = rotationTables;
+		if (t == null || !t.fits(in, rotation)) {
+			t = new RotationTables(in, rotation);
+			rotationTables = t;
+		}
+		return t;
+	}
+	
+	/**
+	 * rotate by 180 degrees
+	 */
+	static void rotate180(byte[] input, YuvLayout in, byte[] output, YuvLayout out, int from, int to) {
+		int w = in.width, h = in.height;
+		for (int y = from * 2; y < to * 2; y++) {
+			int i = in.yOffset + (h - 1 - y) * in.yStride + w - 1;
+			int o = out.yOffset + y * out.yStride;
+			for (int x = 0; x < w; x++) {
+				output[o++] = input[i--];
+			}
+		}
+		int hw = w >> 1, hh = h >> 1;
+		int is = in.uvStep, os = out.uvStep;
+		for (int y = from; y < to; y++) {
+			int i = (hh - 1 - y) * in.uvStride + (hw - 1) * is;
+			int o = y * out.uvStride;
+			for (int x = 0; x < hw; x++, i -= is, o += os) {
+				output[out.uOffset + o] = input[in.uOffset + i];
+				output[out.vOffset + o] = input[in.vOffset + i];
+			}
+		}
+	}
+	
+	/**
+	 * rotate by 90 or 270 degrees, stretching to fit
+	 */
+	static void rotateSwapped(byte[] input, YuvLayout in, byte[] output, YuvLayout out, 
+			RotationTables t, int from, int to) {
+		int w = in.width;
+		int[] row = t.yX, col = t.yY;
+		for (int y = from * 2; y < to * 2; y++) {
+			int c = in.yOffset + col[y];
+			int o = out.yOffset + y * out.yStride;
+			for (int x = 0; x < w; x++) {
+				output[o++] = input[row[x] + c];
+			}
+		}
+		int hw = w >> 1;
+		int os = out.uvStep;
+		row = t.cX;
+		col = t.cY;
+		for (int y = from; y < to; y++) {
+			int c = col[y];
+			int o = y * out.uvStride;
+			for (int x = 0; x < hw; x++, o += os) {
+				int i = row[x] + c;
+				output[out.uOffset + o] = input[in.uOffset + i];
+				output[out.vOffset + o] = input[in.vOffset + i];
+			}
+		}
+	}
+	
+	/**
+	 * rotate any way and shrink to half size; the same as
+	 * rotateScaled() with the 2x2 average written out, as half
+	 * size is the rung we'll spend most time on when squeezed
+	 */
+	static void rotateHalved(byte[] input, YuvLayout in, byte[] output, YuvLayout out, 
+			RotationTables t, int from, int to) {
+		int w = out.width;
+		int[] xs = t.yX, ys = t.yY;
+		for (int y = from * 2; y < to * 2; y++) {
+			int c0 = in.yOffset + ys[2 * y];
+			int c1 = in.yOffset + ys[2 * y + 1];
+			int o = out.yOffset + y * out.yStride;
+			for (int x = 0; x < w; x++) {
+				int a = xs[2 * x], b = xs[2 * x + 1];
+				int sum = (input[a + c0] & 0xff) + (input[b + c0] & 0xff) +
+						(input[a + c1] & 0xff) + (input[b + c1] & 0xff);
+				output[o++] = (byte)((sum + 2) >> 2);
+			}
+		}
+		int hw = w >> 1;
+		int os = out.uvStep;
+		int iu = in.uOffset, iv = in.vOffset;
+		xs = t.cX;
+		ys = t.cY;
+		for (int y = from; y < to; y++) {
+			int c0 = ys[2 * y];
+			int c1 = ys[2 * y + 1];
+			int o = y * out.uvStride;
+			for (int x = 0; x < hw; x++, o += os) {
+				int a0 = xs[2 * x] + c0, b0 = xs[2 * x + 1] + c0;
+				int a1 = xs[2 * x] + c1, b1 = xs[2 * x + 1] + c1;
+				int su = (input[iu + a0] & 0xff) + (input[iu + b0] & 0xff) +
+						(input[iu + a1] & 0xff) + (input[iu + b1] & 0xff);
+				int sv = (input[iv + a0] & 0xff) + (input[iv + b0] & 0xff) +
+						(input[iv + a1] & 0xff) + (input[iv + b1] & 0xff);
+				output[out.uOffset + o] = (byte)((su + 2) >> 2);
+				output[out.vOffset + o] = (byte)((sv + 2) >> 2);
+			}
+		}
+	}
+	
+	/**
+	 * rotate any way and shrink by a whole factor, averaging
+	 * each square of samples the tables pick out of the input
+	 */
+	static void rotateScaled(byte[] input, YuvLayout in, byte[] output, YuvLayout out, 
+			RotationTables t, int scale, int from, int to) {
+		// divide by the area through a 16 bit fixed point 
+		// reciprocal, which is exact for powers of two
+		int area = scale * scale;
+		int recip = 65536 / area;
+		int round = 32768;
+		int w = out.width;
+		int[] xs = t.yX, ys = t.yY;
+		for (int y = from * 2; y < to * 2; y++) {
+			int ry = y * scale;
+			int o = out.yOffset + y * out.yStride;
+			for (int x = 0, rx = 0; x < w; x++, rx += scale) {
+				int sum = 0;
+				for (int j = 0; j < scale; j++) {
+					int c = in.yOffset + ys[ry + j];
+					for (int i = 0; i < scale; i++) {
+						sum += input[xs[rx + i] + c] & 0xff;
+					}
+				}
+				output[o++] = (byte)((sum * recip + round) >> 16);
+			}
+		}
+		int hw = w >> 1;
+		int os = out.uvStep;
+		xs = t.cX;
+		ys = t.cY;
+		for (int y = from; y < to; y++) {
+			int ry = y * scale;
+			int o = y * out.uvStride;
+			for (int x = 0, rx = 0; x < hw; x++, rx += scale, o += os) {
+				int su = 0, sv = 0;
+				for (int j = 0; j < scale; j++) {
+					int c = ys[ry + j];
+					for (int i = 0; i < scale; i++) {
+						int k = xs[rx + i] + c;
+						su += input[in.uOffset + k] & 0xff;
+						sv += input[in.vOffset + k] & 0xff;
+					}
+				}
+				output[out.uOffset + o] = (byte)((su * recip + round) >> 16);
+				output[out.vOffset + o] = (byte)((sv * recip + round) >> 16);
+			}
+		}
+	}
+	
+	/**
+	 * general form of the rotation, pixel by pixel, for odd
+	 * dimensions, which the plane kernels don't handle
+	 */
+	static void rotateY12toYUV420Odd(byte[] input, byte[] output, int width, int height, int rotation) {
 		boolean swap = (rotation == 90 || rotation == 270);
 		boolean flip = (rotation == 90 || rotation == 180);
 		for (int x = 0; x < width; x++) {
@@ -0,0 +1,83 @@
+package com.wordsaretoys.klammer.util;
+
+/**
+ * runs the YUV rotation kernels in Misc across a band pool,
+ * so large frames are converted on several cores at once
+ *
+ * each kind of rotation is its own job to the pool, as they
+ * cost different amounts and may split at different sizes;
+ * so is shrinking the image on the way through. one calling
+ * thread at a time.
+ */
+public class YuvConverter {
+
+	// pool to split conversions across
+	BandPool pool;
+
+	// conversion under way
+	byte[] input, output;
+	YuvLayout in, out;
+	int rotation;
+
+	// jobs for the three kinds of rotation, and
+	// for rotating to a smaller size
+	Rotation copy = new Rotation();
+	Rotation flip = new Rotation();
+	Rotation swap = new Rotation();
+	Rotation shrink = new Rotation();
+
+	/**
+	 * ctor
+	 * @param pool band pool to run on
+	 */
+	public YuvConverter(BandPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * stretch-copy a YUV 4:2:0 image from one layout to
+	 * another with rotation; see Misc.rotateYuv()
+	 */
+	public void rotateYuv(byte[] input, YuvLayout in, byte[] output, YuvLayout out, int rotation) {
+		this.input = input;
+		this.in = in;
+		this.output = output;
+		this.out = out;
+		this.rotation = rotation;
+		Rotation job;
+		boolean tables = false;
+		switch (rotation) {
+		case 90:
+		case 270:
+			job = swap;
+			tables = true;
+			break;
+		case 180:
+			job = flip;
+			break;
+		default:
+			job = copy;
+			break;
+		}
+		if (out.width < in.width) {
+			job = shrink;
+			tables = true;
+		}
+		if (tables) {
+			// build the tables before the bands all try to
+			Misc.getRotationTables(in, rotation);
+		}
+		pool.run(job, out.height >> 1, out.width * out.height);
+		this.input = this.output = null;
+	}
+
+	/**
+	 * band of a rotation
+	 */
+	class Rotation implements BandPool.Job {
+		@Override
+		public void run(int from, int to) {
+			Misc.rotateYuv(input, in, output, out, rotation, from, to);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.wordsaretoys.klammer.util;
+
+/**
+ * describes where the planes of a YUV 4:2:0 frame lie in
+ * its buffer: the offset of each plane, the distance between
+ * rows, and the distance between chroma samples, which is 1
+ * for planar formats and 2 for semi-planar ones like NV21.
+ *
+ * camera buffers pad their rows out to an alignment, so the
+ * conversions in Misc go by a layout rather than assume the
+ * planes are tightly packed.
+ */
+public class YuvLayout {
+
+	// image dimensions in pixels
+	public final int width, height;
+
+	// offset of each plane in bytes
+	public final int yOffset, uOffset, vOffset;
+
+	// distance between rows of the luma and chroma planes
+	public final int yStride, uvStride;
+
+	// distance between neighbouring chroma samples in a row
+	public final int uvStep;
+
+	// total size of the frame in bytes
+	public final int size;
+
+	/**
+	 * ctor
+	 */
+	public YuvLayout(int width, int height,
+			int yOffset, int uOffset, int vOffset,
+			int yStride, int uvStride, int uvStep, int size) {
+		this.width = width;
+		this.height = height;
+		this.yOffset = yOffset;
+		this.uOffset = uOffset;
+		this.vOffset = vOffset;
+		this.yStride = yStride;
+		this.uvStride = uvStride;
+		this.uvStep = uvStep;
+		this.size = size;
+	}
+
+	/**
+	 * layout of a camera preview buffer in YV12 format: rows
+	 * aligned to 16 bytes, and the V plane ahead of the U
+	 */
+	public static YuvLayout createYV12(int width, int height) {
+		int yStride = align16(width);
+		int uvStride = align16(yStride / 2);
+		int ySize = yStride * height;
+		int uvSize = uvStride * height / 2;
+		return new YuvLayout(width, height, 0, ySize + uvSize, ySize,
+				yStride, uvStride, 1, ySize + uvSize * 2);
+	}
+
+	/**
+	 * layout of a tightly packed YV12 frame
+	 */
+	public static YuvLayout createPackedYV12(int width, int height) {
+		int ySize = width * height;
+		int uvSize = ySize >> 2;
+		return new YuvLayout(width, height, 0, ySize + uvSize, ySize,
+				width, width >> 1, 1, ySize + uvSize * 2);
+	}
+
+	/**
+	 * layout of a tightly packed I420 frame, which is what
+	 * the encoder takes as COLOR_FormatYUV420Planar
+	 */
+	public static YuvLayout createI420(int width, int height) {
+		int ySize = width * height;
+		int uvSize = ySize >> 2;
+		return new YuvLayout(width, height, 0, ySize, ySize + uvSize,
+				width, width >> 1, 1, ySize + uvSize * 2);
+	}
+
+	/**
+	 * layout of a camera preview buffer in NV21 format:
+	 * interleaved V and U samples after the Y plane
+	 */
+	public static YuvLayout createNV21(int width, int height) {
+		int ySize = width * height;
+		return new YuvLayout(width, height, 0, ySize + 1, ySize,
+				width, width, 2, ySize + ySize / 2);
+	}
+
+	/**
+	 * shrink a dimension by a whole factor, keeping it even
+	 * so the chroma planes still cover it
+	 * @param n dimension in pixels
+	 * @param scale factor to shrink by, e.g. 2 for half size
+	 * @return scaled dimension
+	 */
+	public static int scaleDimension(int n, int scale) {
+		return (n / scale) & ~1;
+	}
+
+	static int align16(int n) {
+		return (n + 15) & ~15;
+	}
+}
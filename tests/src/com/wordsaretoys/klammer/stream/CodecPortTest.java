@@ -0,0 +1,342 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * runs the per-frame codec buffer handling against a fake
+ * codec, and checks that once warmed up it allocates nothing
+ *
+ * allocations are counted through whatever the runtime has:
+ * HotSpot's ThreadMXBean on a desktop JVM, or Debug's thread
+ * allocation count on the device. both are reached through
+ * reflection, so the test builds for either; on a runtime
+ * with neither, only the frames themselves are checked.
+ */
+public class CodecPortTest extends TestCase {
+
+	// frames to warm up on, and to count allocations over
+	static final int WarmUp = 20000;
+	static final int Frames = 10000;
+
+	// audio frame size in samples, video frame size in bytes
+	static final int AudioFrameSize = 160;
+	static final int VideoFrameSize = 6000;
+
+	// timeout passed to the port in us
+	static final int Timeout = 10000;
+
+	// fake codec and the frames fed through it
+	PassThrough codec;
+	short[] samples, samplesOut;
+	byte[] frame, frameOut;
+	ByteBuffer packet;
+
+	// allocation counter, or null if the runtime has none
+	AllocCounter counter;
+
+	@Override
+	protected void setUp() throws Exception {
+		codec = new PassThrough(4, VideoFrameSize);
+		codec.fetchBuffers();
+		samples = new short[AudioFrameSize];
+		samplesOut = new short[AudioFrameSize];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = (short)(i * 199);
+		}
+		frame = new byte[VideoFrameSize];
+		frameOut = new byte[VideoFrameSize];
+		for (int i = 0; i < frame.length; i++) {
+			frame[i] = (byte) i;
+		}
+		packet = ByteBuffer.allocateDirect(VideoFrameSize);
+		counter = AllocCounter.create();
+	}
+
+	/**
+	 * the audio encoder's cycle: samples in, bytes out
+	 */
+	public void testAudioEncode() throws Exception {
+		assertNoAllocation(new Runnable() {
+			@Override
+			public void run() {
+				assertTrue(codec.queue(samples, 0, AudioFrameSize, 0, Timeout));
+				int index = codec.next(Timeout);
+				assertTrue(index >= 0);
+				assertEquals(AudioFrameSize * 2, codec.read(index, frameOut));
+				codec.releaseOutput(index, false);
+			}
+		});
+		assertEquals((byte)(samples[100] >> 8), frameOut[200]);
+		assertEquals((byte) samples[100], frameOut[201]);
+	}
+
+	/**
+	 * the audio decoder's cycle: a packet in, samples out
+	 */
+	public void testAudioDecode() throws Exception {
+		for (int i = 0; i < AudioFrameSize; i++) {
+			packet.putShort(i * 2, samples[i]);
+		}
+		assertNoAllocation(new Runnable() {
+			@Override
+			public void run() {
+				packet.clear().limit(AudioFrameSize * 2);
+				assertTrue(codec.queue(packet, 0, 0, Timeout));
+				int index = codec.next(Timeout);
+				assertTrue(index >= 0);
+				assertEquals(AudioFrameSize, codec.read(index, samplesOut, 0));
+				codec.releaseOutput(index, false);
+			}
+		});
+		for (int i = 0; i < AudioFrameSize; i++) {
+			assertEquals(samples[i], samplesOut[i]);
+		}
+	}
+
+	/**
+	 * the video encoder's cycle: a frame in, a time stamped
+	 * keyframe out through its buffer
+	 */
+	public void testVideoEncode() throws Exception {
+		assertNoAllocation(new Runnable() {
+			long time;
+			@Override
+			public void run() {
+				time += 40;
+				assertTrue(codec.queue(frame, VideoFrameSize, time * 1000,
+						CodecPort.FlagSyncFrame, 0));
+				int index = codec.next(Timeout);
+				assertTrue(index >= 0);
+				assertEquals(time, codec.presentationTimeUs / 1000);
+				assertTrue((codec.flags & CodecPort.FlagSyncFrame) != 0);
+				ByteBuffer ob = codec.getOutput(index);
+				assertEquals(VideoFrameSize, ob.remaining());
+				ob.get(frameOut, 0, VideoFrameSize);
+				codec.releaseOutput(index, false);
+			}
+		});
+		for (int i = 0; i < VideoFrameSize; i++) {
+			assertEquals(frame[i], frameOut[i]);
+		}
+	}
+
+	/**
+	 * the video decoder's cycle: packets in, with more than
+	 * one output ready at a time, and each one released
+	 */
+	public void testVideoDecode() throws Exception {
+		packet.clear();
+		packet.put(frame);
+		assertNoAllocation(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 2; i++) {
+					packet.clear();
+					assertTrue(codec.queue(packet, System.nanoTime() / 1000, 0, Timeout));
+				}
+				int ready = -1;
+				for (;;) {
+					int index = codec.next(0);
+					if (index < 0) {
+						break;
+					}
+					if (ready >= 0) {
+						codec.releaseOutput(ready, false);
+					}
+					ready = index;
+				}
+				assertTrue(ready >= 0);
+				codec.releaseOutput(ready, true);
+			}
+		});
+		assertEquals(2 * (WarmUp + Frames), codec.released);
+	}
+
+	/**
+	 * run a frame's worth of work until warm, then check
+	 * that running it more allocates nothing
+	 */
+	void assertNoAllocation(Runnable work) throws Exception {
+		for (int i = 0; i < WarmUp; i++) {
+			work.run();
+		}
+		if (counter == null) {
+			return;
+		}
+		long overhead = counter.overhead();
+		long start = counter.get();
+		for (int i = 0; i < Frames; i++) {
+			work.run();
+		}
+		long allocated = counter.get() - start - overhead;
+		// a single allocation per frame would come to at least
+		// Frames times an object header, so anything under a
+		// byte per frame is the counter's own noise
+		assertEquals("bytes allocated per frame", 0, allocated / Frames);
+	}
+
+	/**
+	 * fake codec that passes input straight through to output
+	 *
+	 * an input buffer, once queued, is copied to the output
+	 * buffer of the same index and queued up as output. the
+	 * first dequeue reports changed output buffers, as a
+	 * real codec can. allocates nothing after construction.
+	 */
+	static class PassThrough extends CodecPort {
+
+		// buffers, as handed to the port
+		ByteBuffer[] in, out;
+
+		// free and output-ready buffer indexes, as rings
+		int[] free, ready;
+		int freeHead, freeCount, readyHead, readyCount;
+
+		// description of each queued output
+		int[] sizes, flagses;
+		long[] times;
+
+		// true until the output buffers have been reported changed
+		boolean changed = true;
+
+		// outputs released
+		int released;
+
+		PassThrough(int count, int capacity) {
+			in = new ByteBuffer[count];
+			out = new ByteBuffer[count];
+			free = new int[count];
+			ready = new int[count];
+			sizes = new int[count];
+			flagses = new int[count];
+			times = new long[count];
+			for (int i = 0; i < count; i++) {
+				in[i] = ByteBuffer.allocateDirect(capacity);
+				out[i] = ByteBuffer.allocateDirect(capacity);
+				free[i] = i;
+			}
+			freeCount = count;
+		}
+
+		@Override
+		protected ByteBuffer[] getInputBuffers() {
+			return in;
+		}
+
+		@Override
+		protected ByteBuffer[] getOutputBuffers() {
+			return out;
+		}
+
+		@Override
+		protected int dequeueInputBuffer(long timeoutUs) {
+			if (freeCount == 0) {
+				return TryAgainLater;
+			}
+			int index = free[freeHead];
+			freeHead = (freeHead + 1) % free.length;
+			freeCount--;
+			return index;
+		}
+
+		@Override
+		protected void queueInputBuffer(int index, int offset, int size, long timeUs, int flags) {
+			ByteBuffer src = in[index];
+			ByteBuffer dst = out[index];
+			src.clear().position(offset).limit(offset + size);
+			dst.clear();
+			dst.put(src);
+			sizes[index] = size;
+			flagses[index] = flags;
+			times[index] = timeUs;
+			ready[(readyHead + readyCount) % ready.length] = index;
+			readyCount++;
+		}
+
+		@Override
+		protected int dequeueOutputBuffer(long timeoutUs) {
+			if (changed) {
+				changed = false;
+				return OutputBuffersChanged;
+			}
+			if (readyCount == 0) {
+				return TryAgainLater;
+			}
+			int index = ready[readyHead];
+			readyHead = (readyHead + 1) % ready.length;
+			readyCount--;
+			offset = 0;
+			size = sizes[index];
+			flags = flagses[index];
+			presentationTimeUs = times[index];
+			return index;
+		}
+
+		@Override
+		protected void releaseOutputBuffer(int index, boolean render) {
+			free[(freeHead + freeCount) % free.length] = index;
+			freeCount++;
+			released++;
+		}
+	}
+
+	/**
+	 * counts bytes allocated by the current thread
+	 */
+	static abstract class AllocCounter {
+
+		/**
+		 * @return bytes allocated so far
+		 */
+		abstract long get() throws Exception;
+
+		/**
+		 * @return bytes a call to get() allocates itself, the
+		 * least over a few tries
+		 */
+		long overhead() throws Exception {
+			long least = Long.MAX_VALUE;
+			for (int i = 0; i < 16; i++) {
+				long a = get();
+				least = Math.min(least, get() - a);
+			}
+			return least;
+		}
+
+		/**
+		 * @return counter for the runtime, or null if it has none
+		 */
+		static AllocCounter create() {
+			try {
+				Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+				final Object bean = factory.getMethod("getThreadMXBean").invoke(null);
+				final Method allocated = Class.forName("com.sun.management.ThreadMXBean")
+						.getMethod("getThreadAllocatedBytes", long.class);
+				final Object id = Thread.currentThread().getId();
+				if ((Long) allocated.invoke(bean, id) >= 0) {
+					return new AllocCounter() {
+						@Override
+						long get() throws Exception {
+							return (Long) allocated.invoke(bean, id);
+						}
+					};
+				}
+			} catch (Exception e) {}
+			try {
+				Class<?> debug = Class.forName("android.os.Debug");
+				debug.getMethod("startAllocCounting").invoke(null);
+				final Method allocated = debug.getMethod("getThreadAllocSize");
+				return new AllocCounter() {
+					@Override
+					long get() throws Exception {
+						return (Integer) allocated.invoke(null);
+					}
+				};
+			} catch (Exception e) {}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.wordsaretoys.klammer.stream;
+
+import junit.framework.TestCase;
+
+/**
+ * plays a steady stream through the jitter buffer, with
+ * frames lost along the way, and checks the delay it keeps
+ */
+public class JitterBufferTest extends TestCase {
+
+	// samples per frame and sampling rate, 20 ms frames
+	static final int FrameSize = 160;
+	static final int SampleRate = 8000;
+	static final int FrameTime = FrameSize * 1000 / SampleRate;
+
+	// fixed transit time in ms
+	static final int Transit = 50;
+
+	JitterBuffer buffer;
+	short[] in = new short[FrameSize];
+	short[] out = new short[FrameSize];
+
+	@Override
+	protected void setUp() throws Exception {
+		buffer = new JitterBuffer(FrameSize, SampleRate);
+	}
+
+	/**
+	 * after a burst loss longer than the buffer is deep,
+	 * playout picks up from the next frame at the usual delay
+	 * rather than play the whole gap over late
+	 */
+	public void testBurstLossDoesNotAddDelay() throws Exception {
+		int target = buffer.getTargetDelay();
+		int n = 0;
+		for (; n < 50; n++) {
+			tick(n, true);
+		}
+		assertTrue(buffer.getDepth() <= target + 1);
+
+		// a burst of most of the buffer's capacity
+		for (; n < 80; n++) {
+			tick(n, false);
+		}
+
+		// a couple of frames on, the delay is back to the target
+		tick(n++, true);
+		tick(n++, true);
+		assertTrue("depth " + buffer.getDepth(), buffer.getDepth() <= target + 1);
+		assertEquals(n - 2, out[0]);
+	}
+
+	/**
+	 * a single loss in a buffer at its target delay is
+	 * concealed, not skipped
+	 */
+	public void testShortLossIsConcealed() throws Exception {
+		int n = 0;
+		for (; n < 50; n++) {
+			tick(n, true);
+		}
+		tick(n++, false);
+		for (; n < 60; n++) {
+			tick(n, true);
+		}
+		assertEquals(1, buffer.getConcealed());
+		assertEquals(0, buffer.getShrunk());
+	}
+
+	/**
+	 * one frame time: frame n arrives, unless lost, and
+	 * one frame is pulled for playback
+	 */
+	void tick(int n, boolean arrives) {
+		int timestamp = n * FrameTime;
+		if (arrives) {
+			in[0] = (short) n;
+			buffer.put(timestamp, in, timestamp + Transit);
+		}
+		buffer.pull(out);
+	}
+}
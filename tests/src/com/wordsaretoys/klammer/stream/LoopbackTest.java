@@ -0,0 +1,228 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * runs two network objects against each other over an
+ * in-memory loopback, with the sender's side impaired
+ *
+ * the impairment is seeded, so the same packets are lost
+ * and reordered every run. nothing here touches the Android
+ * framework, so it runs on a desktop JVM as well as on the
+ * device.
+ */
+public class LoopbackTest extends TestCase {
+
+	// impairment random seed
+	static final long Seed = 20131018;
+
+	// frames sent, frames sent after them so the last gaps
+	// get noticed and asked for, and time between frames in ms
+	static final int Frames = 60;
+	static final int Tail = 10;
+	static final int FrameTime = 40;
+
+	// video frame and audio packet sizes in bytes
+	static final int FrameSize = 2000;
+	static final int AudioSize = 120;
+
+	// longest time to wait for stragglers in ms
+	static final int Settle = 2000;
+
+	// clock shared by both ends
+	Network.Clock clock = new Network.Clock() {
+		@Override
+		public long getTime() {
+			return System.nanoTime() / 1000000;
+		}
+	};
+
+	// log that goes nowhere
+	Network.Logger logger = new Network.Logger() {
+		@Override
+		public void d(String tag, String msg) {}
+	};
+
+	// impaired side of the loopback
+	ImpairedTransport impaired;
+
+	// the two ends, and what the receiving end got
+	Network sender, receiver;
+	Recorder received;
+
+	@Override
+	protected void setUp() throws Exception {
+		LoopbackTransport[] pair = LoopbackTransport.createPair();
+		impaired = new ImpairedTransport(pair[0], Seed);
+		impaired.setLoss(0.05f);
+		impaired.setDelay(10, 5);
+		impaired.setReorder(0.05f, 30);
+		received = new Recorder();
+		sender = new Network(impaired, clock, logger, new Recorder());
+		receiver = new Network(pair[1], clock, logger, received);
+		sender.connect("127.0.0.1", false);
+		receiver.connect("127.0.0.1", false);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * every video frame gets through whole, lost packets
+	 * being asked for again and resent
+	 */
+	public void testVideoLossRecovery() throws Exception {
+		byte[] frame = new byte[FrameSize];
+		for (int i = 0; i < Frames + Tail; i++) {
+			fill(frame, i);
+			sender.sendVideoFrame(frame, FrameSize, clock.getTime());
+			Thread.sleep(FrameTime);
+		}
+		waitFor(Frames);
+
+		assertTrue("nothing lost", impaired.getLost() > 0);
+		assertTrue("nothing reordered", impaired.getReordered() > 0);
+		assertTrue("no reordering seen", 
+				receiver.getStats(Network.VideoPacket).getReordered() > 0);
+		assertTrue("no nacks sent", receiver.getNackList().getRequested() > 0);
+		assertTrue("nothing resent", sender.getHistory().getResends() > 0);
+		assertEquals("corrupt frames", 0, received.corrupt);
+		for (int i = 0; i < Frames; i++) {
+			assertTrue("frame " + i + " missing", received.frames[i]);
+		}
+	}
+
+	/**
+	 * when the link collapses and no news of the video comes
+	 * back, the sender backs off and steps the picture down
+	 */
+	public void testVideoCollapseBacksOff() throws Exception {
+		byte[] frame = new byte[FrameSize];
+		RateController rc = sender.getRateController();
+		int rate = 0;
+		for (int i = 0; i < Frames; i++) {
+			if (i == Tail) {
+				// nothing gets through from here on
+				rate = rc.getBitRate();
+				impaired.setLoss(1f);
+			}
+			fill(frame, i);
+			sender.sendVideoFrame(frame, FrameSize, clock.getTime());
+			Thread.sleep(FrameTime);
+		}
+		assertTrue("rate not backed off", rc.getBitRate() < rate);
+		assertTrue("picture not stepped down", rc.getScale() > 1);
+	}
+
+	/**
+	 * audio isn't resent, so what's lost stays lost, but
+	 * everything else arrives and is counted
+	 */
+	public void testAudioLossAndReordering() throws Exception {
+		byte[] packet = new byte[AudioSize];
+		for (int i = 0; i < Frames; i++) {
+			sender.sendAudioFrame(packet, AudioSize, (int) clock.getTime());
+			Thread.sleep(FrameTime / 4);
+		}
+		Thread.sleep(FrameTime * 4);
+
+		// the impairment loses keepalives too, so it can only
+		// bound the audio lost from above
+		ReceiveStats stats = receiver.getStats(Network.AudioPacket);
+		assertTrue("nothing lost", stats.getLost() > 0);
+		assertTrue("no reordering seen", stats.getReordered() > 0);
+		assertTrue("audio packets missing", 
+				received.audio >= Frames - impaired.getLost());
+		assertTrue("audio packets invented", received.audio < Frames);
+		assertEquals("audio packets counted", received.audio, stats.getReceived());
+	}
+
+	/**
+	 * fill a frame with bytes that depend on its index,
+	 * which goes in the first four
+	 */
+	static void fill(byte[] frame, int index) {
+		ByteBuffer.wrap(frame).putInt(0, index);
+		for (int i = 4; i < frame.length; i++) {
+			frame[i] = (byte)(index * 31 + i);
+		}
+	}
+
+	/**
+	 * wait for the first n frames, or for the settling time
+	 */
+	void waitFor(int n) throws InterruptedException {
+		long end = clock.getTime() + Settle;
+		while (clock.getTime() < end && received.count(n) < n) {
+			Thread.sleep(FrameTime);
+		}
+	}
+
+	/**
+	 * media sink that checks and counts what it's given
+	 */
+	static class Recorder implements Network.Sink {
+
+		// video frames seen whole, by index
+		boolean[] frames = new boolean[Frames + Tail];
+
+		// frames that didn't match what was sent
+		volatile int corrupt;
+
+		// audio packets seen
+		volatile int audio;
+
+		// scratch frame to compare against
+		byte[] expect = new byte[FrameSize];
+
+		@Override
+		public void onAudio(ByteBuffer data, int timestamp, int arrival) {
+			audio++;
+		}
+
+		@Override
+		public boolean onVideo(ByteBuffer data) {
+			int index = data.remaining() == FrameSize ? data.getInt(data.position()) : -1;
+			if (index < 0 || index >= frames.length) {
+				corrupt++;
+				return true;
+			}
+			fill(expect, index);
+			for (int i = 0; i < FrameSize; i++) {
+				if (data.get(data.position() + i) != expect[i]) {
+					corrupt++;
+					return true;
+				}
+			}
+			synchronized (this) {
+				frames[index] = true;
+			}
+			return true;
+		}
+
+		@Override
+		public void onVideoConfig(ByteBuffer data) {}
+
+		@Override
+		public void onVideoIdle() {}
+
+		@Override
+		public void onSourceChanged() {}
+
+		/**
+		 * @return how many of the first n frames have been seen
+		 */
+		synchronized int count(int n) {
+			int c = 0;
+			for (int i = 0; i < n; i++) {
+				c += frames[i] ? 1 : 0;
+			}
+			return c;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * checks that a client taking over a freed table entry
+ * never gets packets queued for the one that left
+ */
+public class PeerTableTest extends TestCase {
+
+	// client timeout in ms
+	static final int Timeout = 1000;
+
+	// relay buffer length in bytes
+	static final int Size = 64;
+
+	PeerTable table;
+	InetSocketAddress a, b, c;
+	ByteBuffer packet = ByteBuffer.allocate(Size);
+
+	@Override
+	protected void setUp() throws Exception {
+		PeerTable.MaxPeers = 2;
+		table = new PeerTable(Size);
+		a = new InetSocketAddress("192.168.49.2", Network.Port);
+		b = new InetSocketAddress("192.168.49.3", Network.Port);
+		c = new InetSocketAddress("192.168.49.4", Network.Port);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		PeerTable.MaxPeers = 4;
+	}
+
+	/**
+	 * packets queued for a client that expires are dropped,
+	 * and the newcomer in its entry gets only its own
+	 */
+	public void testReusedEntryDropsStalePackets() throws Exception {
+		PeerTable.Peer pa = table.find(a, 1, 0);
+		PeerTable.Peer pb = table.find(b, 2, 0);
+		assertNotNull(pa);
+		assertNotNull(pb);
+
+		// a sends, which queues for b; then b goes quiet
+		packet.clear();
+		packet.put(0, (byte) 1);
+		assertTrue(table.relay(pa, Network.VideoPacket, packet));
+		table.find(a, 1, Timeout * 2);
+		table.expire(Timeout * 2, Timeout);
+		assertNull(pb.address);
+
+		// c takes b's entry, and a sends again
+		PeerTable.Peer pc = table.find(c, 3, Timeout * 2);
+		assertTrue(pc == pb);
+		packet.put(0, (byte) 2);
+		assertTrue(table.relay(pa, Network.VideoPacket, packet));
+
+		// the writer sees the stale packet first, and drops it
+		SendQueue.Slot slot = pc.queue.poll();
+		assertNotNull(slot);
+		assertFalse(pc.isCurrent(slot));
+		pc.queue.recycle(slot);
+		slot = pc.queue.poll();
+		assertNotNull(slot);
+		assertTrue(pc.isCurrent(slot));
+		assertEquals(2, slot.data.get(0));
+		pc.queue.recycle(slot);
+		assertNull(pc.queue.poll());
+	}
+}
@@ -0,0 +1,93 @@
+package com.wordsaretoys.klammer.stream;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * checks that frames only ever come out in frame id order,
+ * even when the reassembler runs out of slots
+ */
+public class ReassemblerTest extends TestCase {
+
+	// fragment payload length in bytes
+	static final int Payload = 100;
+
+	// ids of the frames delivered, in order, and their count
+	int[] delivered = new int[16];
+	int count;
+
+	Reassembler reassembler;
+	ByteBuffer packet = ByteBuffer.allocate(Packetizer.HeaderSize + Payload);
+
+	@Override
+	protected void setUp() throws Exception {
+		reassembler = new Reassembler() {
+			@Override
+			protected void onFrame(ByteBuffer data, int timestamp) {
+				delivered[count++] = timestamp;
+			}
+		};
+	}
+
+	/**
+	 * a frame older than every one in assembly, turning up
+	 * with no slot free for it, is dropped rather than let
+	 * one of them go in its place and deliver it after
+	 */
+	public void testOutOfSlotsKeepsOrder() throws Exception {
+		// frame 10 completes, then 12 onward start and stall
+		add(10, 0, 1);
+		for (int id = 12; id < 12 + Reassembler.FrameCount; id++) {
+			add(id, 0, 2);
+		}
+		assertEquals(1, count);
+
+		// 11 now has no slot, and is older than all of them
+		int late = reassembler.getLate();
+		add(11, 0, 1);
+		assertEquals(late + 1, reassembler.getLate());
+		assertEquals(0, reassembler.getAbandoned());
+
+		// the stalled frames still complete, in order
+		for (int id = 12; id < 12 + Reassembler.FrameCount; id++) {
+			add(id, 1, 2);
+		}
+		assertEquals(1 + Reassembler.FrameCount, count);
+		for (int i = 0; i < count; i++) {
+			assertEquals(i == 0 ? 10 : 11 + i, delivered[i]);
+		}
+	}
+
+	/**
+	 * a frame newer than the oldest in assembly still gets
+	 * a slot by giving up on the oldest
+	 */
+	public void testOutOfSlotsEvictsOldest() throws Exception {
+		for (int id = 1; id <= Reassembler.FrameCount; id++) {
+			add(id, 0, 2);
+		}
+		add(1 + Reassembler.FrameCount, 0, 1);
+		assertEquals(1, reassembler.getAbandoned());
+		for (int id = 2; id <= Reassembler.FrameCount; id++) {
+			add(id, 1, 2);
+		}
+		assertEquals(Reassembler.FrameCount, count);
+		for (int i = 0; i < count; i++) {
+			assertEquals(i + 2, delivered[i]);
+		}
+	}
+
+	/**
+	 * add one fragment of a frame, its id doubling as its
+	 * timestamp so the deliveries can be told apart
+	 */
+	void add(int id, int index, int fragments) {
+		packet.clear();
+		packet.putShort(0, (short) id);
+		packet.put(2, (byte) index);
+		packet.put(3, (byte) fragments);
+		packet.put(4, (byte) 0);
+		reassembler.add(0, id, packet, 0, packet.capacity(), 0);
+	}
+}